@@ -1,26 +1,44 @@
 package it.dc.bridge.om;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.alljoyn.bus.AboutObj;
 import org.alljoyn.bus.BusAttachment;
 import org.alljoyn.bus.BusException;
 import org.alljoyn.bus.BusListener;
+import org.alljoyn.bus.MessageContext;
 import org.alljoyn.bus.Mutable;
+import org.alljoyn.bus.SessionListener;
 import org.alljoyn.bus.SessionOpts;
 import org.alljoyn.bus.SessionPortListener;
 import org.alljoyn.bus.SignalEmitter;
 import org.alljoyn.bus.Status;
-import org.eclipse.californium.core.coap.CoAP.Code;
-import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import it.dc.bridge.om.CoAP.RequestCode;
 import it.dc.bridge.om.CoAP.ResponseCode;
 import it.dc.bridge.proxy.CoAPProxy;
@@ -47,14 +65,36 @@ public class AJObjectManagerApp implements Runnable {
 	/* the logger */
 	private static final Logger LOGGER = Logger.getGlobal();
 
+	/* the time (in milliseconds) an AllJoyn method call waits for the CoAP response */
+	private static final long CALL_TIMEOUT = Long.getLong("bridge.call.timeout", 10000);
+
+	/* the number of threads delivering the notifications to the subscribers */
+	private static final int NOTIFY_THREADS = Integer.getInteger("bridge.notify.threads", 8);
+
+	/* the maximum number of subscribers waiting for a delivery thread */
+	private static final int NOTIFY_QUEUE_SIZE = Integer.getInteger("bridge.notify.queue", 4096);
+
+	/* true if the resource objects are registered only when first addressed */
+	private static final boolean LAZY_OBJECTS = Boolean.getBoolean("bridge.objects.lazy");
+
+	/* the time (in milliseconds) after which an idle resource object is unregistered (lazy mode) */
+	private static final long OBJECT_IDLE_TIMEOUT = Long.getLong("bridge.objects.idle", 300000);
+
+	/* the executor delivering the notifications */
+	private static final ThreadPoolExecutor notifyExecutor =
+			newBoundedExecutor(NOTIFY_THREADS, NOTIFY_QUEUE_SIZE, "aj-notify-%d");
+
 	/* the class instance */
 	private static final AJObjectManagerApp objectManager = new AJObjectManagerApp();
 
 	/* map containing the <object path, AJ object> pair for each registered object */
 	private static Map<String, CoAPResource> resources = new ConcurrentHashMap<String, CoAPResource>();
 
-	/* map containing the <object path, uniqueName, signal emitter> tuple for each object */
-	private static Map<String, Map<String, SignalEmitter>> emitters = new ConcurrentHashMap<String, Map<String, SignalEmitter>>();
+	/* map containing the <object path, endpoint object> pair for each endpoint (lazy mode) */
+	private static Map<String, EndpointObject> endpoints = new ConcurrentHashMap<String, EndpointObject>();
+
+	/* map containing the <object path, observation> pair for each observed object */
+	private static ConcurrentMap<String, Observation> observations = new ConcurrentHashMap<String, Observation>();
 
 	/* map containing the <uniqueName, sessionId> for each joiner */
 	private static Map<String, Integer> sessions = new ConcurrentHashMap<String, Integer>();
@@ -65,12 +105,50 @@ public class AJObjectManagerApp implements Runnable {
 	/* the bus listener */
 	private static BusListener busListener;
 
-	/* the CoAP interface for send signals */
-	private static CoAPInterface objectInterface;
+	/* the bridge object */
+	private static final BridgeObject bridgeObject = new BridgeObject();
+
+	/* the identifier of the last streaming multi-GET */
+	private static final AtomicInteger multiGetId = new AtomicInteger();
+
+	/* the number of subscriptions removed because the subscriber left the session */
+	private static final AtomicLong reapedSubscriptions = new AtomicLong();
+
+	/* the number of joiners removed because they left the session */
+	private static final AtomicLong reapedMembers = new AtomicLong();
+
+	/* the About data, built once and shared by all the announcements */
+	private static final BridgeAboutData aboutData = new BridgeAboutData();
 
 	/* the About object to send the About data */
 	AboutObj aboutObj;
 
+	/* the announcer coalescing the announcements of added and removed objects */
+	private Announcer announcer;
+
+	/* the thread unregistering the idle objects (lazy mode) */
+	private ScheduledExecutorService evictor;
+
+	/* the listener removing the joiners which leave the session */
+	private final SessionListener sessionListener = new SessionListener() {
+		public void sessionLost(int sessionId, int reason) {
+			LOGGER.info(String.format("SessionListener.sessionLost(%d, %d)", sessionId, reason));
+			for (Entry<String, Integer> entry : sessions.entrySet()) {
+				if (entry.getValue() == sessionId) {
+					removeMember(entry.getKey());
+				}
+			}
+		}
+		public void sessionMemberAdded(int sessionId, String uniqueName) {
+			LOGGER.info(String.format("SessionListener.sessionMemberAdded(%d, %s)", sessionId, uniqueName));
+			sessions.put(uniqueName, sessionId);
+		}
+		public void sessionMemberRemoved(int sessionId, String uniqueName) {
+			LOGGER.info(String.format("SessionListener.sessionMemberRemoved(%d, %s)", sessionId, uniqueName));
+			removeMember(uniqueName);
+		}
+	};
+
 	/**
 	 * The thread will run on application closing.
 	 * It deals with objects unregistration and bus disconnection.
@@ -81,6 +159,9 @@ public class AJObjectManagerApp implements Runnable {
 
 			Status status;
 
+			// discard the pending announcement
+			announcer.shutdown();
+
 			// unannounce About object
 			status = aboutObj.unannounce();
 			if (status != Status.OK) {
@@ -88,9 +169,18 @@ public class AJObjectManagerApp implements Runnable {
 			}
 
 			// unregister objects
+			if (evictor != null) {
+				evictor.shutdownNow();
+			}
 			for(Entry<String, CoAPResource> e : resources.entrySet()) {
+				if (e.getValue().isRegistered()) {
+					mBus.unregisterBusObject(e.getValue());
+				}
+			}
+			for(Entry<String, EndpointObject> e : endpoints.entrySet()) {
 				mBus.unregisterBusObject(e.getValue());
 			}
+			mBus.unregisterBusObject(bridgeObject);
 
 			// unregister bus listener
 			mBus.unregisterBusListener(busListener);
@@ -101,6 +191,9 @@ public class AJObjectManagerApp implements Runnable {
 				LOGGER.warning("Error canceling advertised name.");
 			}
 
+			// stop sending notifications
+			notifyExecutor.shutdownNow();
+
 			// disconnect from the Bus
 			mBus.disconnect();
 
@@ -129,13 +222,24 @@ public class AJObjectManagerApp implements Runnable {
 	/**
 	 * Creates a new AllJoyn {@link CoAPResource} and registers it
 	 * to the AllJoyn Bus.
+	 * <p>
+	 * If the objects are registered on demand (<tt>bridge.objects.lazy</tt>),
+	 * the resource object is only created: the bus registers an {@link EndpointObject}
+	 * for each endpoint, while the resource object is registered when a client
+	 * opens it (see {@link #materialize(String)}).
 	 * 
 	 * @param objectPath the object path
 	 * @param resourceType the resource type (can be null)
 	 * @param interfaceDescription the interface description (can be null)
 	 * @param endpointName the endpoint name
+	 * @param endpointPath the object path of the endpoint
 	 */
-	public synchronized void addResource(String objectPath, String resourceType, String interfaceDescription, String endpointName) {
+	public synchronized void addResource(String objectPath, String resourceType, String interfaceDescription, String endpointName, String endpointPath) {
+
+		if (LAZY_OBJECTS) {
+			addLazyResource(objectPath, resourceType, interfaceDescription, endpointName, endpointPath);
+			return;
+		}
 
 		CoAPResource resource = new CoAPResource(objectPath, resourceType, interfaceDescription, endpointName);
 
@@ -146,16 +250,15 @@ public class AJObjectManagerApp implements Runnable {
 
 			return;
 		}
+		resource.setRegistered(true);
 
 		LOGGER.info("Registered bus object: "+objectPath);
 
 		// put the new object in the resources map
 		resources.put(objectPath, resource);
 
-
-
 		// announce the new object to the AJ network
-		announce();
+		announcer.request();
 
 	}
 
@@ -166,17 +269,148 @@ public class AJObjectManagerApp implements Runnable {
 	 */
 	public synchronized void removeResource(String objectPath) {
 
+		// remove the object from the resource map
+		CoAPResource resource = resources.remove(objectPath);
+		if (resource == null) {
+			return;
+		}
+
 		// unregister the object from the bus
-		mBus.unregisterBusObject(resources.get(objectPath));
+		if (resource.isRegistered()) {
+			mBus.unregisterBusObject(resource);
+			resource.setRegistered(false);
+		}
 
-		// remove the object from the resource map
-		resources.remove(objectPath);
+		// remove the object from its endpoint (lazy mode)
+		EndpointObject endpoint = getEndpoint(objectPath);
+		if (endpoint != null && endpoint.removeResource(objectPath)) {
+			endpoints.remove(endpoint.getPath());
+			mBus.unregisterBusObject(endpoint);
+		}
 
-		// remove all the signal emitter associated to the specified object
-		emitters.remove(objectPath);
+		// remove all the subscribers associated to the specified object
+		Observation observation = observations.remove(objectPath);
+		if (observation != null) {
+			observation.clear();
+		}
 
 		// send the about data
-		announce();
+		announcer.request();
+
+	}
+
+	/**
+	 * Registers to the bus the object representing the specified resource,
+	 * if it is not registered yet.
+	 * 
+	 * @param objectPath the object path
+	 * @return the status of the registration
+	 */
+	public synchronized Status materialize(String objectPath) {
+
+		CoAPResource resource = resources.get(objectPath);
+		if (resource == null) {
+			return Status.BUS_NO_SUCH_OBJECT;
+		}
+
+		resource.touch();
+		if (resource.isRegistered()) {
+			return Status.OK;
+		}
+
+		Status status = mBus.registerBusObject(resource, objectPath);
+		if (Status.OK != status) {
+			LOGGER.warning("BusAttachment.registerBusObject() failed: " + status);
+			return status;
+		}
+		resource.setRegistered(true);
+
+		LOGGER.info("Registered bus object on demand: "+objectPath);
+
+		// announce the new object to the AJ network
+		announcer.request();
+
+		return Status.OK;
+
+	}
+
+	/*
+	 * Creates the resource object without registering it, and registers
+	 * the endpoint object if it is the first resource of the endpoint.
+	 */
+	private void addLazyResource(String objectPath, String resourceType, String interfaceDescription, String endpointName, String endpointPath) {
+
+		// a registration update does not replace the existing object
+		if (resources.containsKey(objectPath)) {
+			return;
+		}
+
+		EndpointObject endpoint = endpoints.get(endpointPath);
+		if (endpoint == null) {
+			endpoint = new EndpointObject(endpointPath, endpointName);
+
+			Status status = mBus.registerBusObject(endpoint, endpointPath);
+			if (Status.OK != status) {
+				LOGGER.warning("BusAttachment.registerBusObject() failed: " + status);
+				return;
+			}
+			endpoints.put(endpointPath, endpoint);
+
+			LOGGER.info("Registered endpoint object: "+endpointPath);
+
+			// announce the new endpoint to the AJ network
+			announcer.request();
+		}
+
+		resources.put(objectPath, new CoAPResource(objectPath, resourceType, interfaceDescription, endpointName));
+		endpoint.addResource(objectPath);
+
+	}
+
+	/*
+	 * Returns the endpoint object the resource belongs to, if any.
+	 * The endpoint path is a prefix of the resource path.
+	 */
+	private EndpointObject getEndpoint(String objectPath) {
+
+		if (endpoints.isEmpty()) {
+			return null;
+		}
+
+		for (int i = objectPath.lastIndexOf('/'); i > 0; i = objectPath.lastIndexOf('/', i - 1)) {
+			EndpointObject endpoint = endpoints.get(objectPath.substring(0, i));
+			if (endpoint != null) {
+				return endpoint;
+			}
+		}
+
+		return null;
+
+	}
+
+	/*
+	 * Unregisters the resource objects that are not observed
+	 * and that have not been called for the idle timeout.
+	 */
+	private synchronized void evictIdleObjects() {
+
+		long now = System.nanoTime();
+		long idleTimeout = TimeUnit.MILLISECONDS.toNanos(OBJECT_IDLE_TIMEOUT);
+		int count = 0;
+
+		for (CoAPResource resource : resources.values()) {
+			if (resource.isRegistered() && now - resource.getLastAccess() > idleTimeout
+					&& isIdle(observations.get(resource.getPath()))) {
+				mBus.unregisterBusObject(resource);
+				resource.setRegistered(false);
+				count++;
+			}
+		}
+
+		if (count > 0) {
+			LOGGER.info("Unregistered "+count+" idle bus objects");
+			announcer.request();
+		}
 
 	}
 
@@ -187,65 +421,269 @@ public class AJObjectManagerApp implements Runnable {
 	 * the {@link CoAPRequestMessage} interface.
 	 * The method call response from the Proxy is a Californium <tt>Response</tt>.
 	 * This method translates the response message into a {@link CoAPResponseMessage}.
+	 * <p>
+	 * The method is invoked by the AllJoyn dispatch thread, which must return the reply.
+	 * The call is handed off to {@link #callMethodAsync(String, RequestCode, CoAPRequestMessage)}
+	 * and the concurrent callbacks are enabled, so that the bus keeps dispatching the
+	 * other method calls while this one waits for the CoAP response.
 	 * 
 	 * @param path the URI path
 	 * @param code the request code
 	 * @param request a message implementing the request interface
 	 * @return the response message
 	 */
-	public synchronized ResponseMessage callMethod(final String path, final RequestCode code, final CoAPRequestMessage request) {
+	public ResponseMessage callMethod(final String path, final RequestCode code, final CoAPRequestMessage request) {
+
+		// allow the bus to dispatch other calls while this one is blocked
+		mBus.enableConcurrentCallbacks();
+
+		ListenableFuture<ResponseMessage> future = callMethodAsync(path, code, request);
+
+		return awaitResponse(path, future, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CALL_TIMEOUT));
+
+	}
+
+	/**
+	 * Sends a GET method call to each specified object.
+	 * The calls are sent concurrently and the cached responses are
+	 * returned without waiting for the other calls.
+	 * 
+	 * @param objectPaths the object paths
+	 * @param request the request message, sent to each object
+	 * @return the response messages, in the same order of the object paths
+	 */
+	public ResponseMessage[] multiGet(final String[] objectPaths, final CoAPRequestMessage request) {
+
+		// allow the bus to dispatch other calls while this one is blocked
+		mBus.enableConcurrentCallbacks();
+
+		LOGGER.info("Object Manager received a multi-GET on "+objectPaths.length+" objects");
+
+		List<ListenableFuture<ResponseMessage>> futures = callMethodAsync(objectPaths, request);
+
+		// all the calls share the same deadline
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CALL_TIMEOUT);
+
+		ResponseMessage[] responses = new ResponseMessage[objectPaths.length];
+		for (int i = 0; i < objectPaths.length; i++) {
+			responses[i] = awaitResponse(objectPaths[i], futures.get(i), deadline);
+		}
+
+		return responses;
+
+	}
+
+	/**
+	 * Sends a GET method call to each specified object, without waiting for the responses.
+	 * Each response is sent to the caller as a <tt>multiGetResult</tt> signal,
+	 * as soon as it arrives.
+	 * 
+	 * @param source the object emitting the signals
+	 * @param objectPaths the object paths
+	 * @param request the request message, sent to each object
+	 * @return the identifier of the multi-GET
+	 */
+	public int multiGetStream(final BridgeObject source, final String[] objectPaths, final CoAPRequestMessage request) {
+
+		// the caller is the destination of the signals
+		MessageContext context = mBus.getMessageContext();
+		SignalEmitter emitter = new SignalEmitter(source, context.sender, context.sessionId, SignalEmitter.GlobalBroadcast.Off);
+		final BridgeInterface signal = emitter.getInterface(BridgeInterface.class);
+
+		final int id = multiGetId.incrementAndGet();
+
+		LOGGER.info("Object Manager received a streaming multi-GET ("+id+") on "+objectPaths.length+" objects from "+context.sender);
+
+		List<ListenableFuture<ResponseMessage>> futures = callMethodAsync(objectPaths, request);
+
+		for (int i = 0; i < objectPaths.length; i++) {
+			final String path = objectPaths[i];
+			final ListenableFuture<ResponseMessage> future = futures.get(i);
+			// the result is taken in the completing thread, only the signal is queued,
+			// so a full executor cannot lose the result
+			future.addListener(new Runnable() {
+				public void run() {
+					final ResponseMessage response = awaitResponse(path, future, System.nanoTime());
+					try {
+						notifyExecutor.execute(new Runnable() {
+							public void run() {
+								emitResult(signal, id, path, response);
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						LOGGER.warning("Too many pending signals, multi-GET ("+id+") result for "+path+" not delivered");
+						emitResult(signal, id, path, new ResponseMessage(ResponseCode.SERVICE_UNAVAILABLE));
+					}
+				}
+			}, MoreExecutors.sameThreadExecutor());
+		}
+
+		return id;
+
+	}
+
+	/*
+	 * Sends the multi-GET result signal.
+	 * The signals of the same multi-GET are sent one at a time.
+	 */
+	private static void emitResult(BridgeInterface signal, int id, String path, ResponseMessage response) {
+
+		try {
+			synchronized (signal) {
+				signal.multiGetResult(id, path, response);
+			}
+		} catch (BusException e) {
+			LOGGER.severe("AllJoyn BusException during multi-GET result.");
+		}
+
+	}
+
+	/**
+	 * Sends the method call to the CoAP Proxy without blocking the caller.
+	 * The returned future is completed when the CoAP response arrives;
+	 * no thread waits for it in the meantime.
+	 * A response found in the proxy cache completes the future immediately.
+	 * If too many calls are already pending, the future is completed
+	 * with a 5.03 (Service Unavailable) response.
+	 * 
+	 * @param path the URI path
+	 * @param code the request code
+	 * @param request a message implementing the request interface
+	 * @return the future response message
+	 */
+	public ListenableFuture<ResponseMessage> callMethodAsync(final String path, final RequestCode code, final CoAPRequestMessage request) {
 
 		LOGGER.info("Object Manager received a "+code+" method call on the object "+path);
 
+		if (!resources.containsKey(path)) {
+			return Futures.immediateFuture(new ResponseMessage(ResponseCode.NOT_FOUND));
+		}
+
 		// create a Californium request from the CoAPRequestMessage request
-		Request coapRequest = getRequest(code, request);
+		final Request coapRequest = MessageTranslator.toRequest(code, request);
 
 		// send the method call to the Proxy
-		Response coapResponse = CoAPProxy.getInstance().callMethod(path, coapRequest);
+		ListenableFuture<Response> coapResponse = CoAPProxy.getInstance().callMethodAsync(path, coapRequest);
 
 		// create a ResponseMessage from the Californium Response
-		ResponseMessage response = getResponse(coapResponse);
+		return Futures.transform(coapResponse, new Function<Response, ResponseMessage>() {
+			public ResponseMessage apply(Response response) {
+				return MessageTranslator.toResponseMessage(response);
+			}
+		}, MoreExecutors.sameThreadExecutor());
 
-		return response;
+	}
+
+	/*
+	 * Sends a GET method call to each object, without waiting for the responses.
+	 */
+	private List<ListenableFuture<ResponseMessage>> callMethodAsync(final String[] objectPaths, final CoAPRequestMessage request) {
+
+		List<ListenableFuture<ResponseMessage>> futures = new ArrayList<ListenableFuture<ResponseMessage>>(objectPaths.length);
+		for (String path : objectPaths) {
+			futures.add(callMethodAsync(path, RequestCode.GET, request));
+		}
+
+		return futures;
+
+	}
+
+	/*
+	 * Waits for the response until the deadline (System.nanoTime() based).
+	 * If the response is not available, the method returns an error response.
+	 */
+	private ResponseMessage awaitResponse(final String path, final ListenableFuture<ResponseMessage> future, final long deadline) {
+
+		try {
+			return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			LOGGER.warning("No response received for the method call on the object "+path);
+			future.cancel(true);
+			return new ResponseMessage(ResponseCode.GATEWAY_TIMEOUT);
+		} catch (InterruptedException e) {
+			LOGGER.severe("Method call interrupted: " + e.getMessage());
+			future.cancel(true);
+			return new ResponseMessage(ResponseCode.INTERNAL_SERVER_ERROR);
+		} catch (ExecutionException e) {
+			LOGGER.severe("Method call failed: " + e.getCause());
+			return new ResponseMessage(ResponseCode.INTERNAL_SERVER_ERROR);
+		}
 
 	}
 
 	/**
 	 * Sends to the <tt>CoAPProxy</tt> a request in order to receive
 	 * future notifications from that resource.
+	 * <p>
+	 * The <tt>pmin</tt> attribute of the request, if present, sets the minimum
+	 * interval (in seconds) between two notifications to the client, and it is
+	 * not forwarded to the CoAP server.
+	 * <p>
+	 * The registrations and cancellations of an object are serialized by its
+	 * {@link Observation}, without locking the other objects: the method waits
+	 * only for the observe handshake of the specified object.
 	 * 
 	 * @param uniqueName the client unique name
 	 * @param objectPath the object path of the observable resource
 	 * @param request the request message
 	 * @return status code
 	 */
-	public synchronized Status register(String uniqueName, String objectPath, CoAPRequestMessage request) {
+	public Status register(String uniqueName, String objectPath, CoAPRequestMessage request) {
+
+		CoAPResource resource = resources.get(objectPath);
+		if (resource == null) {
+			return Status.BUS_NO_SUCH_OBJECT;
+		}
 
-		Status status = Status.OK;
+		// the minimum interval between notifications is not sent to the CoAP server
+		long minInterval = Subscriber.parseMinInterval(request.getAttributes());
+		if (request.getAttributes() != null && request.getAttributes().containsKey(Subscriber.MIN_INTERVAL_ATTRIBUTE)) {
+			Map<String, String> attributes = new HashMap<String, String>(request.getAttributes());
+			attributes.remove(Subscriber.MIN_INTERVAL_ATTRIBUTE);
+			request = new RequestMessage(request.getOptions(), attributes, request.getPayload());
+		}
 
-		Request coapRequest = getRequest(RequestCode.GET, request);
+		Request coapRequest = MessageTranslator.toRequest(RequestCode.GET, request);
 
-		CoAPResource resource = resources.get(objectPath);
 		Integer sessionId = sessions.get(uniqueName);
 
-		// create a signal emitter and associate it to the object
-		SignalEmitter emitter = new SignalEmitter(resource, uniqueName, sessionId, SignalEmitter.GlobalBroadcast.Off);
-
-		// if the observer is the first one, send registration to the CoAP server
-		Map<String, SignalEmitter> tmpEmitters = emitters.get(objectPath);
-		if (tmpEmitters == null) {
-			tmpEmitters = new ConcurrentHashMap<String, SignalEmitter>();
+		// create a subscriber and associate it to the object
+		Subscriber subscriber = new Subscriber(resource, uniqueName, sessionId);
+		subscriber.setMinInterval(minInterval);
 
-			status = CoAPProxy.getInstance().register(objectPath, coapRequest);
+		Observation observation = observations.get(objectPath);
+		if (observation == null) {
+			Observation created = new Observation(objectPath, resource);
+			observation = observations.putIfAbsent(objectPath, created);
+			if (observation == null) {
+				observation = created;
+			}
 		}
 
-		// if the registration does not fail and the observer is not already registered, add it
-		if (status == Status.OK && !tmpEmitters.containsKey(uniqueName)) {
-			tmpEmitters.put(uniqueName, emitter);
+		// if the observer is the first one, the registration is sent to the CoAP server
+		ListenableFuture<Status> registration = observation.subscribe(subscriber, coapRequest);
+
+		// the handshake of this object must not block the other callbacks
+		mBus.enableConcurrentCallbacks();
 
-			emitters.put(objectPath, tmpEmitters);
+		Status status;
+		try {
+			status = registration.get(CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			status = Status.TIMEOUT;
+		} catch (InterruptedException e) {
+			status = Status.FAIL;
+		} catch (ExecutionException e) {
+			LOGGER.severe("Observe registration failed: " + e.getCause());
+			status = Status.FAIL;
+		}
 
-			LOGGER.info("Added signal emitter associated to: uniqueName="+uniqueName+" object="+objectPath);
+		if (status == Status.OK) {
+			LOGGER.info("Added subscriber associated to: uniqueName="+uniqueName+" object="+objectPath);
+		} else {
+			// the client does not wait for the pending registration anymore,
+			// an existing subscription of the client is kept
+			observation.remove(subscriber);
 		}
 
 		return status;
@@ -258,24 +696,74 @@ public class AJObjectManagerApp implements Runnable {
 	 * @param uniqueName the client unique name
 	 * @param objectPath the object path
 	 */
-	public synchronized void cancel(String uniqueName, String objectPath) {
+	public void cancel(String uniqueName, String objectPath) {
 
-		// remove the emitter with key <uniqueName, objectPath>
-		Map<String, SignalEmitter> tmpEmitters = emitters.get(objectPath);
-		if (tmpEmitters == null)
+		// remove the subscriber with key <uniqueName, objectPath>:
+		// if there are no more observers for that resource, the observation is cancelled
+		Observation observation = observations.get(objectPath);
+		if (observation == null || observation.remove(uniqueName) == null)
 			return;
-		tmpEmitters.remove(uniqueName);
 
-		if (tmpEmitters.isEmpty()) {
-			emitters.remove(objectPath);
+		LOGGER.info("Removed subscriber associated to: uniqueName="+uniqueName+" object="+objectPath);
 
-			// there are no more observers for that resource
-			CoAPProxy.getInstance().cancel(objectPath);
-		} else {
-			emitters.put(objectPath, tmpEmitters);
+	}
+
+	/**
+	 * Removes a joiner which left the session, together with all its subscriptions.
+	 * The observations left without subscribers are cancelled on the CoAP server.
+	 * 
+	 * @param uniqueName the unique name of the joiner
+	 */
+	private void removeMember(String uniqueName) {
+
+		if (sessions.remove(uniqueName) != null) {
+			reapedMembers.incrementAndGet();
 		}
 
-		LOGGER.info("Removed signal emitter associated to: uniqueName="+uniqueName+" object="+objectPath);
+		int removed = 0;
+		for (Observation observation : observations.values()) {
+			// the session listener does not wait for the cancellation
+			if (observation.remove(uniqueName) != null) {
+				removed++;
+			}
+		}
+
+		if (removed > 0) {
+			long total = reapedSubscriptions.addAndGet(removed);
+			LOGGER.info("Removed "+removed+" subscriptions of "+uniqueName+" ("+total+" reaped subscriptions)");
+		}
+
+	}
+
+	/**
+	 * Returns the number of subscriptions removed because the
+	 * subscriber left the session without cancelling them.
+	 * 
+	 * @return the number of reaped subscriptions
+	 */
+	public long getReapedSubscriptions() {
+
+		return reapedSubscriptions.get();
+
+	}
+
+	/**
+	 * Returns the number of joiners removed because they left the session.
+	 * 
+	 * @return the number of reaped session members
+	 */
+	public long getReapedMembers() {
+
+		return reapedMembers.get();
+
+	}
+
+	/*
+	 * Checks if the specified observation, if any, is not observing the object.
+	 */
+	private static boolean isIdle(Observation observation) {
+
+		return observation == null || observation.getState() == Observation.State.IDLE;
 
 	}
 
@@ -294,6 +782,11 @@ public class AJObjectManagerApp implements Runnable {
 	 * </ul>
 	 * If the rule is not added or not all the three fields are correctly set
 	 * the client will not receive notifications.
+	 * <p>
+	 * The method does not wait for the signals to be sent: each subscriber
+	 * receives the notification from the notification executor, in parallel
+	 * with the other subscribers. Widely observed objects may send a single
+	 * session-cast or sessionless signal instead (see {@link Observation}).
 	 * 
 	 * @param objectPath the object path
 	 * @param coapMessage the CoAP message to notify
@@ -302,119 +795,16 @@ public class AJObjectManagerApp implements Runnable {
 
 		LOGGER.info("A notification arrived from object "+objectPath+" with code "+coapMessage.getCode());
 		// create a ResponseMessage from a Californium Response
-		ResponseMessage message = getResponse(coapMessage);
-
-		// get the object signal emitters
-		Map<String, SignalEmitter> tmpEmitters = emitters.get(objectPath);
-
-		// for each emitter associated to the object, send the notification
-		for(Entry<String, SignalEmitter> e : tmpEmitters.entrySet()) {
-
-			SignalEmitter emitter = e.getValue();
-			objectInterface = emitter.getInterface(CoAPInterface.class);
-
-			try {
-				// send the notification
-				objectInterface.notification(message);
-			} catch (BusException exception) {
-				LOGGER.severe("AllJoyn BusException during notification.");
-			}
-		}
-
-	}
-
-	/**
-	 * Starting from a {@link CoAPRequestMessage}, the method fills a new Californium
-	 * <tt>Request</tt> message.
-	 * 
-	 * @param code the request code
-	 * @param request the CoAP request
-	 * @return the Californium CoAP request
-	 */
-	private Request getRequest(final RequestCode code, final CoAPRequestMessage request) {
-
-		// create the request
-		Request coapRequest = new Request(Code.valueOf(code.value));
-
-		// set confirmable
-		coapRequest.setConfirmable(true);
-		coapRequest.setToken(new byte[0]);
-
-		// copy the payload
-		coapRequest.setPayload(request.getPayload());
-
-		Options options = request.getOptions();
-
-		// copy the options
-		OptionSet coapOpt = new OptionSet();
-		if(options.hasContentFormat())
-			coapOpt.setContentFormat(options.getContentFormat());
-		for(byte[] e : options.getEtag())
-			coapOpt.addETag(e);
-		if(options.hasAccept())
-			coapOpt.setAccept(options.getAccept());
-		for(byte[] e : options.getIfMatch())
-			coapOpt.addIfMatch(e);
-		coapOpt.setIfNoneMatch(options.getIfNoneMatch());
-		if(options.getSize1() != null)
-			coapOpt.setSize1(options.getSize1());
-
-		// copy the query attributes
-		Map<String,String> attributes = request.getAttributes();
-		if(!attributes.isEmpty()) {
-			List<String> queryAttrs = new ArrayList<String>();
-			for(Map.Entry<String, String> entry : attributes.entrySet()) {
-				queryAttrs.add(entry.getKey()+"="+entry.getValue());
-			}
-			StringBuilder builder = new StringBuilder();
-			for(String s : queryAttrs){
-				builder.append(s).append("&");
-			}
-			if (builder.length() > 0){
-				builder.delete(builder.length() - 1, builder.length());
-			}
-			coapOpt.setUriQuery(builder.toString());
-		}
-
-		// set request options
-		coapRequest.setOptions(coapOpt);
-
-		return coapRequest;
-
-	}
-
-	/**
-	 * Starting from a Californium <tt>Response</tt>, the method fills a new
-	 * {@link CoAPResponseMessage}.
-	 * 
-	 * @param coapResponse the Californium CoAP response message
-	 * @return the CoAPResponse message
-	 */
-	private ResponseMessage getResponse(Response coapResponse) {
-
-		org.eclipse.californium.core.coap.CoAP.ResponseCode code = coapResponse.getCode();
-
-		// create the response
-		ResponseMessage response = new ResponseMessage(ResponseCode.valueOf(code.value));
+		ResponseMessage message = MessageTranslator.toResponseMessage(coapMessage);
 
-		// copy the options
-		OptionSet coapOpt = coapResponse.getOptions();
-		Options options = new Options();
-		if(coapOpt.hasContentFormat())
-			options.setContentFormat(coapOpt.getContentFormat());
-		options.setEtag(coapOpt.getETags());
-		if(coapOpt.hasAccept())
-			options.setAccept(coapOpt.getAccept());
-		options.setIfMatch(coapOpt.getIfMatch());
-		options.setIfNoneMatch(coapOpt.hasIfNoneMatch());
-		options.setSize1(coapOpt.getSize1());
-
-		response.setOptions(options);
+		// get the object observation
+		Observation observation = observations.get(objectPath);
+		if (observation == null)
+			return;
 
-		// copy the payload
-		response.setPayload(coapResponse.getPayload());
+		// send the notification to the object subscribers
+		observation.notify(message, notifyExecutor);
 
-		return response;
 	}
 
 	/**
@@ -480,7 +870,28 @@ public class AJObjectManagerApp implements Runnable {
 		// bind session port with the session options
 		objectManager.bindSessionPort(contactPort, sessionOpts);
 
-		status = aboutObj.announce(contactPort.value, new BridgeAboutData());
+		// register the bridge object
+		status = mBus.registerBusObject(bridgeObject, BridgeObject.OBJECT_PATH);
+		if (status != Status.OK) {
+			LOGGER.warning("BusAttachment.registerBusObject() failed: " + status);
+		}
+
+		// periodically unregister the idle objects
+		if (LAZY_OBJECTS) {
+			evictor = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat("aj-evictor").setDaemon(true).build());
+			long period = Math.max(1000, OBJECT_IDLE_TIMEOUT / 4);
+			evictor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					evictIdleObjects();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+
+		// the next announcements are coalesced by the announcer
+		announcer = new Announcer(aboutObj, contactPort.value, aboutData);
+
+		status = aboutObj.announce(contactPort.value, aboutData);
 		if (status != Status.OK) {
 			LOGGER.warning("Announce failed " + status.toString());
 			return;
@@ -511,6 +922,11 @@ public class AJObjectManagerApp implements Runnable {
 			public void sessionJoined(short sessionPort, int id, String joiner) {
 				LOGGER.info(String.format("SessionPortListener.sessionJoined(%d, %d, %s)", sessionPort, id, joiner));
 				sessions.put(joiner, id);
+				// a multipoint session keeps the same listener for all the joiners
+				Status status = mBus.setSessionListener(id, sessionListener);
+				if (status != Status.OK) {
+					LOGGER.warning("BusAttachment.setSessionListener() failed: " + status);
+				}
 			}
 		});
 		if (status != Status.OK) {
@@ -521,22 +937,16 @@ public class AJObjectManagerApp implements Runnable {
 	}
 
 	/*
-	 * Sends the about data to announce the new registered object.
-	 * Before, it unannounces the previous About data.
+	 * Creates a bounded executor with the specified number of threads and queue size.
 	 */
-	private void announce() {
+	private static ThreadPoolExecutor newBoundedExecutor(int threads, int queueSize, String nameFormat) {
 
-		Status status;
-		Mutable.ShortValue contactPort = new Mutable.ShortValue(CONTACT_PORT);
-
-		aboutObj.unannounce();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build());
+		executor.allowCoreThreadTimeOut(true);
 
-		status = aboutObj.announce(contactPort.value, new BridgeAboutData());
-		if (status != Status.OK) {
-			LOGGER.warning("Announce failed " + status.toString());
-			return;
-		}
-		LOGGER.info("Announce called announcing SessionPort: " + contactPort.value);
+		return executor;
 
 	}
 
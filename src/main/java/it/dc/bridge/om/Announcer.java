@@ -0,0 +1,150 @@
+package it.dc.bridge.om;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.alljoyn.bus.AboutDataListener;
+import org.alljoyn.bus.AboutObj;
+import org.alljoyn.bus.Status;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The <tt>Announcer</tt> coalesces the About announcements requested
+ * by the {@link AJObjectManagerApp} when resources are added or removed.
+ * <p>
+ * A node registering many resources at once produces a burst of requests:
+ * instead of an unannounce/announce pair for each of them, the announcement is
+ * sent once the requests stop arriving for a quiet window, or once the
+ * maximum delay from the first request of the burst has elapsed.
+ */
+class Announcer {
+
+	/* the logger */
+	private static final Logger LOGGER = Logger.getGlobal();
+
+	/* the time (in milliseconds) without requests after which the announcement is sent */
+	private static final long QUIET_WINDOW = Long.getLong("bridge.announce.quiet", 200);
+
+	/* the maximum time (in milliseconds) an announcement can be delayed */
+	private static final long MAX_DELAY = Long.getLong("bridge.announce.maxdelay", 2000);
+
+	/* the About object to send the About data */
+	private final AboutObj aboutObj;
+
+	/* the session port to announce */
+	private final short sessionPort;
+
+	/* the About data */
+	private final AboutDataListener aboutData;
+
+	/* the thread sending the announcements */
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("aj-announcer").setDaemon(true).build());
+
+	/* the announcement scheduled for the current burst, if any */
+	private ScheduledFuture<?> pending;
+
+	/* the time the current burst started */
+	private long burstStart;
+
+	/**
+	 * Instantiates a new announcer.
+	 * 
+	 * @param aboutObj the About object
+	 * @param sessionPort the session port to announce
+	 * @param aboutData the About data
+	 */
+	Announcer(AboutObj aboutObj, short sessionPort, AboutDataListener aboutData) {
+
+		this.aboutObj = aboutObj;
+		this.sessionPort = sessionPort;
+		this.aboutData = aboutData;
+
+	}
+
+	/**
+	 * Requests a new announcement. The announcement is postponed until
+	 * the end of the current burst of requests.
+	 */
+	synchronized void request() {
+
+		long now = System.nanoTime();
+
+		if (pending == null) {
+			burstStart = now;
+		} else {
+			pending.cancel(false);
+		}
+
+		// never postpone the announcement beyond the maximum delay
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(now - burstStart);
+		long delay = Math.max(0, Math.min(QUIET_WINDOW, MAX_DELAY - elapsed));
+
+		// the task cannot run before its future is set, since it takes the lock
+		Announcement announcement = new Announcement();
+		announcement.future = scheduler.schedule(announcement, delay, TimeUnit.MILLISECONDS);
+		pending = announcement.future;
+
+	}
+
+	/**
+	 * Stops sending announcements. The pending one, if any, is discarded.
+	 */
+	synchronized void shutdown() {
+
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+		scheduler.shutdown();
+
+	}
+
+	/*
+	 * Sends the about data to announce the registered objects.
+	 * Before, it unannounces the previous About data.
+	 */
+	private void announce() {
+
+		aboutObj.unannounce();
+
+		Status status = aboutObj.announce(sessionPort, aboutData);
+		if (status != Status.OK) {
+			LOGGER.warning("Announce failed " + status.toString());
+			return;
+		}
+		LOGGER.info("Announce called announcing SessionPort: " + sessionPort);
+
+	}
+
+	/**
+	 * The task sending a scheduled announcement.
+	 */
+	private final class Announcement implements Runnable {
+
+		/* the future of the task, set holding the announcer lock */
+		private ScheduledFuture<?> future;
+
+		public void run() {
+
+			synchronized (Announcer.this) {
+				// a request while this task was starting has replaced it
+				// (the cancellation does not stop a running task), or the
+				// announcer has been shut down
+				if (pending != future) {
+					return;
+				}
+				pending = null;
+			}
+
+			announce();
+
+		}
+
+	}
+
+}
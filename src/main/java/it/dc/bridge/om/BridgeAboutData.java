@@ -1,5 +1,6 @@
 package it.dc.bridge.om;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -20,12 +21,21 @@ import org.alljoyn.bus.Version;
  * <p>
  * The {@link #getAboutData(String)} method is called by the AllJoyn framework when
  * a <tt>AboutProxy</tt> object calls <tt>AboutProxy.getAboutData()</tt> method.
+ * <p>
+ * The About data does not change during the bridge lifetime, so both maps are
+ * built once and shared, unmodifiable, by all the announcements.
  */
 public class BridgeAboutData implements AboutDataListener {
 
 	/* the logger */
 	private static final Logger LOGGER = Logger.getGlobal();
 
+	/* the About data */
+	private static final Map<String, Variant> ABOUT_DATA = buildAboutData();
+
+	/* the announced About data */
+	private static final Map<String, Variant> ANNOUNCED_ABOUT_DATA = buildAnnouncedAboutData();
+
 	/**
 	 * Get the Dictionary that is returned when a user calls <tt>org.alljoyn.About.GetAboutData</tt>.
 	 * The returned Dictionary must contain the AboutData dictionary for the language specified.
@@ -44,21 +54,7 @@ public class BridgeAboutData implements AboutDataListener {
 			LOGGER.fine("Language not supported. Default language (en) will be used.");
 		}
 
-		// FIXME data values
-		Map<String, Variant> aboutData = new HashMap<String, Variant>();
-		aboutData.put("AppId", new Variant(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}));
-		aboutData.put("DeviceId", new Variant(new String("738c9f4a-ec3e-44f3-b1dc-0e6e3cb57383")));
-		aboutData.put("ModelNumber", new Variant("Bridge"));
-		aboutData.put("DefaultLanguage", new Variant("en"));
-		aboutData.put("SupportedLanguages", new Variant(new String[] { "en" }));
-		aboutData.put("DeviceName", new Variant("Bridge device"));
-		aboutData.put("AppName", new Variant("CoAPBridge"));
-		aboutData.put("Manufacturer", new Variant(new String("David Costa")));
-		aboutData.put("Description", new Variant( "An application to interconnect AllJoyn and CoAP devices"));
-		aboutData.put("SoftwareVersion", new Variant(new String("1.0")));
-		aboutData.put("AJSoftwareVersion", new Variant(Version.get()));
-
-		return aboutData;
+		return ABOUT_DATA;
 	}
 
 	/**
@@ -82,6 +78,38 @@ public class BridgeAboutData implements AboutDataListener {
 	 */
 	public Map<String, Variant> getAnnouncedAboutData() throws ErrorReplyBusException {
 
+		return ANNOUNCED_ABOUT_DATA;
+
+	}
+
+	/*
+	 * Builds the About data dictionary.
+	 */
+	private static Map<String, Variant> buildAboutData() {
+
+		// FIXME data values
+		Map<String, Variant> aboutData = new HashMap<String, Variant>();
+		aboutData.put("AppId", new Variant(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}));
+		aboutData.put("DeviceId", new Variant(new String("738c9f4a-ec3e-44f3-b1dc-0e6e3cb57383")));
+		aboutData.put("ModelNumber", new Variant("Bridge"));
+		aboutData.put("DefaultLanguage", new Variant("en"));
+		aboutData.put("SupportedLanguages", new Variant(new String[] { "en" }));
+		aboutData.put("DeviceName", new Variant("Bridge device"));
+		aboutData.put("AppName", new Variant("CoAPBridge"));
+		aboutData.put("Manufacturer", new Variant(new String("David Costa")));
+		aboutData.put("Description", new Variant( "An application to interconnect AllJoyn and CoAP devices"));
+		aboutData.put("SoftwareVersion", new Variant(new String("1.0")));
+		aboutData.put("AJSoftwareVersion", new Variant(Version.get()));
+
+		return Collections.unmodifiableMap(aboutData);
+
+	}
+
+	/*
+	 * Builds the announced About data dictionary.
+	 */
+	private static Map<String, Variant> buildAnnouncedAboutData() {
+
 		Map<String, Variant> aboutData = new HashMap<String, Variant>();
 		aboutData.put("AppId", new Variant(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}));
 		aboutData.put("DeviceId", new Variant(new String("738c9f4a-ec3e-44f3-b1dc-0e6e3cb57383")));
@@ -92,7 +120,7 @@ public class BridgeAboutData implements AboutDataListener {
 		aboutData.put("Manufacturer", new Variant(new String("David Costa")));
 		aboutData.put("SoftwareVersion", new Variant(new String("1.0")));
 
-		return aboutData;
+		return Collections.unmodifiableMap(aboutData);
 
 	}
 
@@ -0,0 +1,88 @@
+package it.dc.bridge.om;
+
+import org.alljoyn.bus.BusException;
+import org.alljoyn.bus.annotation.BusInterface;
+import org.alljoyn.bus.annotation.BusMethod;
+import org.alljoyn.bus.annotation.BusProperty;
+import org.alljoyn.bus.annotation.BusSignal;
+
+/**
+ * The BridgeInterface is an AllJoyn interface implemented by
+ * the bridge object, which allows a client to act on many
+ * CoAP resources with a single AllJoyn method call.
+ * It implements the following methods:
+ * <ul>
+ * <li> {@link #multiGet(String[], RequestMessage)} the GET method on many objects. </li>
+ * <li> {@link #multiGetStream(String[], RequestMessage)} the GET method on many objects,
+ * whose responses are sent as signals. </li>
+ * </ul>
+ * Its properties report the subscriptions and the session members
+ * the bridge removed because the clients left the session.
+ * 
+ * @see CoAPInterface
+ */
+@BusInterface (name="com.bridge.Bridge", announced="true", descriptionLanguage="en", description="CoAP Bridge interface")
+public interface BridgeInterface {
+
+	/**
+	 * The multi-GET method. It executes a GET method on the
+	 * RESTful CoAP interface of each specified object.
+	 * The requests are sent concurrently and the cached responses
+	 * are returned without contacting the CoAP servers.
+	 *
+	 * @param objectPaths the object paths
+	 * @param request the request message, sent to each object
+	 * @return the response messages, in the same order of the object paths.
+	 * An unknown object gets a 4.04 response.
+	 * @throws BusException AllJoyn bus exception
+	 */
+	@BusMethod (name="multiGet", signature="asr", replySignature="ar", description="Send a GET method call to many objects")
+	public ResponseMessage[] multiGet(String[] objectPaths, RequestMessage request) throws BusException;
+
+	/**
+	 * The streaming multi-GET method. It executes a GET method on the
+	 * RESTful CoAP interface of each specified object, like
+	 * {@link #multiGet(String[], RequestMessage)}, but it returns immediately:
+	 * each response is sent to the caller as a {@link #multiGetResult(int, String, ResponseMessage)}
+	 * signal as soon as it arrives.
+	 *
+	 * @param objectPaths the object paths
+	 * @param request the request message, sent to each object
+	 * @return the identifier of the multi-GET, reported by the signals
+	 * @throws BusException AllJoyn bus exception
+	 */
+	@BusMethod (name="multiGetStream", signature="asr", replySignature="i", description="Send a GET method call to many objects, results are signaled")
+	public int multiGetStream(String[] objectPaths, RequestMessage request) throws BusException;
+
+	/**
+	 * Signal sent to the caller of {@link #multiGetStream(String[], RequestMessage)}
+	 * for each response.
+	 *
+	 * @param id the identifier of the multi-GET
+	 * @param objectPath the object path
+	 * @param response the response message
+	 * @throws BusException AllJoyn bus exception
+	 */
+	@BusSignal (name="multiGetResult", signature="isr", description="A multi-GET response arrived")
+	public void multiGetResult(int id, String objectPath, ResponseMessage response) throws BusException;
+
+	/**
+	 * Returns the number of subscriptions removed because
+	 * the subscriber left the session without cancelling them.
+	 *
+	 * @return the number of reaped subscriptions
+	 * @throws BusException AllJoyn bus exception
+	 */
+	@BusProperty (name="getReapedSubscriptions", description="Returns the number of reaped subscriptions")
+	public long getReapedSubscriptions() throws BusException;
+
+	/**
+	 * Returns the number of joiners removed because they left the session.
+	 *
+	 * @return the number of reaped session members
+	 * @throws BusException AllJoyn bus exception
+	 */
+	@BusProperty (name="getReapedMembers", description="Returns the number of reaped session members")
+	public long getReapedMembers() throws BusException;
+
+}
@@ -0,0 +1,63 @@
+package it.dc.bridge.om;
+
+import org.alljoyn.bus.BusException;
+import org.alljoyn.bus.BusObject;
+
+/**
+ * The Class BridgeObject is the AllJoyn object representing the bridge itself.
+ * It implements the {@link BridgeInterface}, whose methods act on many
+ * {@link CoAPResource}s at once.
+ * 
+ * @see BridgeInterface
+ */
+public class BridgeObject implements BridgeInterface, BusObject {
+
+	/** The object path. */
+	public static final String OBJECT_PATH = "/bridge";
+
+	/* (non-Javadoc)
+	 * @see it.dc.bridge.om.BridgeInterface#multiGet(java.lang.String[], it.dc.bridge.om.RequestMessage)
+	 */
+	public ResponseMessage[] multiGet(String[] objectPaths, RequestMessage request) throws BusException {
+
+		return AJObjectManagerApp.getInstance().multiGet(objectPaths, request);
+
+	}
+
+	/* (non-Javadoc)
+	 * @see it.dc.bridge.om.BridgeInterface#multiGetStream(java.lang.String[], it.dc.bridge.om.RequestMessage)
+	 */
+	public int multiGetStream(String[] objectPaths, RequestMessage request) throws BusException {
+
+		return AJObjectManagerApp.getInstance().multiGetStream(this, objectPaths, request);
+
+	}
+
+	/* (non-Javadoc)
+	 * @see it.dc.bridge.om.BridgeInterface#multiGetResult(int, java.lang.String, it.dc.bridge.om.ResponseMessage)
+	 */
+	public void multiGetResult(int id, String objectPath, ResponseMessage response) throws BusException {
+
+		// No code needed here
+
+	}
+
+	/* (non-Javadoc)
+	 * @see it.dc.bridge.om.BridgeInterface#getReapedSubscriptions()
+	 */
+	public long getReapedSubscriptions() throws BusException {
+
+		return AJObjectManagerApp.getInstance().getReapedSubscriptions();
+
+	}
+
+	/* (non-Javadoc)
+	 * @see it.dc.bridge.om.BridgeInterface#getReapedMembers()
+	 */
+	public long getReapedMembers() throws BusException {
+
+		return AJObjectManagerApp.getInstance().getReapedMembers();
+
+	}
+
+}
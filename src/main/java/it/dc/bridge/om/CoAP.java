@@ -12,6 +12,9 @@ public class CoAP {
 	/**  The CoAP charset is always UTF-8. */
 	public static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
 
+	/** The empty payload, shared by all the messages without payload. */
+	static final byte[] EMPTY_PAYLOAD = new byte[0];
+
 	/**
 	 * The enumeration of request codes: GET, POST, PUT and DELETE.
 	 */
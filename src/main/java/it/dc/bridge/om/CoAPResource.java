@@ -36,6 +36,12 @@ public class CoAPResource implements CoAPInterface, BusObject{
 	/** The Endpoint name */
 	private String endpointName;
 
+	/** True if the object is registered to the bus */
+	private volatile boolean registered;
+
+	/** The time of the last method call (System.nanoTime()) */
+	private volatile long lastAccess = System.nanoTime();
+
 	/**
 	 * Instantiates a new CoAP resource with an object path.
 	 *
@@ -84,11 +90,54 @@ public class CoAPResource implements CoAPInterface, BusObject{
 
 	}
 
+	/**
+	 * Checks if the object is registered to the bus.
+	 * 
+	 * @return true if registered
+	 */
+	boolean isRegistered() {
+
+		return registered;
+
+	}
+
+	/**
+	 * Sets the object registration state.
+	 * 
+	 * @param registered true if the object is registered to the bus
+	 */
+	void setRegistered(boolean registered) {
+
+		this.registered = registered;
+
+	}
+
+	/**
+	 * Records a method call on the object.
+	 */
+	void touch() {
+
+		lastAccess = System.nanoTime();
+
+	}
+
+	/**
+	 * Returns the time of the last method call on the object.
+	 * 
+	 * @return the time, as returned by <tt>System.nanoTime()</tt>
+	 */
+	long getLastAccess() {
+
+		return lastAccess;
+
+	}
+
 	/* (non-Javadoc)
 	 * @see it.dc.bridge.om.CoAPInterface#Get(it.dc.bridge.om.RequestMessage)
 	 */
 	public ResponseMessage get(final RequestMessage request) throws BusException {
 
+		touch();
 		ResponseMessage response = AJObjectManagerApp.getInstance().callMethod(objectPath, RequestCode.GET, request);
 
 		return response;
@@ -100,6 +149,7 @@ public class CoAPResource implements CoAPInterface, BusObject{
 	 */
 	public ResponseMessage post(final RequestMessage request) throws BusException {
 
+		touch();
 		ResponseMessage response = AJObjectManagerApp.getInstance().callMethod(objectPath, RequestCode.POST, request);
 
 		return response;
@@ -111,6 +161,7 @@ public class CoAPResource implements CoAPInterface, BusObject{
 	 */
 	public ResponseMessage delete() throws BusException {
 
+		touch();
 		RequestMessage request = new RequestMessage();
 		ResponseMessage response = AJObjectManagerApp.getInstance().callMethod(objectPath, RequestCode.DELETE, request);
 
@@ -125,6 +176,7 @@ public class CoAPResource implements CoAPInterface, BusObject{
 
 		// TODO extend observing as in 1.4 RFC 7641
 		// FIXME it depends also on the request message fields
+		touch();
 		return AJObjectManagerApp.getInstance().register(uniqueName, objectPath, request);
 
 	}
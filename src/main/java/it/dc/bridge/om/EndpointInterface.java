@@ -0,0 +1,54 @@
+package it.dc.bridge.om;
+
+import org.alljoyn.bus.BusException;
+import org.alljoyn.bus.Status;
+import org.alljoyn.bus.annotation.BusInterface;
+import org.alljoyn.bus.annotation.BusMethod;
+import org.alljoyn.bus.annotation.BusProperty;
+
+/**
+ * The EndpointInterface is an AllJoyn interface implemented by
+ * the AllJoyn objects representing a CoAP endpoint.
+ * <p>
+ * When the bridge registers the resource objects on demand, the endpoint
+ * object is the only object announced for a CoAP node. A client lists
+ * the node resources with {@link #getResources()} and asks for a resource
+ * object with {@link #open(String)} before calling its methods.
+ * 
+ * @see CoAPInterface
+ */
+@BusInterface (name="com.bridge.Endpoint", announced="true", descriptionLanguage="en", description="CoAP endpoint interface")
+public interface EndpointInterface {
+
+	/**
+	 * Returns the object paths of the endpoint resources.
+	 *
+	 * @return the object paths
+	 * @throws BusException AllJoyn bus exception
+	 */
+	@BusMethod (name="getResources", replySignature="as", description="Returns the object paths of the endpoint resources")
+	public String[] getResources() throws BusException;
+
+	/**
+	 * Registers the object representing the specified resource,
+	 * if it is not registered yet.
+	 *
+	 * @param objectPath the object path of the resource
+	 * @return the status of the registration
+	 * @throws BusException AllJoyn bus exception
+	 */
+	@BusMethod (name="open", signature="s", replySignature="i", description="Registers the resource object")
+	public Status open(String objectPath) throws BusException;
+
+	/**
+	 * The Endpoint Name <i>ep</i> attribute is an opaque string used by
+	 * a device during its registration on the RD.
+	 * It must be unique within the CoAP network.
+	 * 
+	 * @return the Endpoint field
+	 * @throws BusException AllJoyn bus exception
+	 */
+	@BusProperty (name="getEndpoint", description="Returns the Endpoint name")
+	public String getEndpoint() throws BusException;
+
+}
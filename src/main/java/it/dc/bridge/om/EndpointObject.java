@@ -0,0 +1,109 @@
+package it.dc.bridge.om;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.alljoyn.bus.BusException;
+import org.alljoyn.bus.BusObject;
+import org.alljoyn.bus.Status;
+
+/**
+ * The Class EndpointObject is an AllJoyn object representing a CoAP endpoint.
+ * It is registered instead of the resource objects when they are registered
+ * on demand, and it keeps the object paths of the endpoint resources.
+ * 
+ * @see EndpointInterface
+ */
+public class EndpointObject implements EndpointInterface, BusObject {
+
+	/** The object path. */
+	private final String objectPath;
+
+	/** The Endpoint name */
+	private final String endpointName;
+
+	/** The object paths of the endpoint resources */
+	private final Set<String> resources = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Instantiates a new endpoint object.
+	 *
+	 * @param path the object path
+	 * @param endpointName the Endpoint Name
+	 */
+	public EndpointObject(String path, String endpointName) {
+
+		this.objectPath = path;
+		this.endpointName = endpointName;
+
+	}
+
+	/**
+	 * Gets the object path.
+	 *
+	 * @return the object path
+	 */
+	public String getPath() {
+
+		return objectPath;
+
+	}
+
+	/**
+	 * Adds a resource to the endpoint.
+	 * 
+	 * @param path the resource object path
+	 */
+	void addResource(String path) {
+
+		resources.add(path);
+
+	}
+
+	/**
+	 * Removes a resource from the endpoint.
+	 * 
+	 * @param path the resource object path
+	 * @return true if the endpoint has no more resources
+	 */
+	boolean removeResource(String path) {
+
+		resources.remove(path);
+
+		return resources.isEmpty();
+
+	}
+
+	/* (non-Javadoc)
+	 * @see it.dc.bridge.om.EndpointInterface#getResources()
+	 */
+	public String[] getResources() throws BusException {
+
+		return resources.toArray(new String[0]);
+
+	}
+
+	/* (non-Javadoc)
+	 * @see it.dc.bridge.om.EndpointInterface#open(java.lang.String)
+	 */
+	public Status open(String path) throws BusException {
+
+		if (!resources.contains(path)) {
+			return Status.BUS_NO_SUCH_OBJECT;
+		}
+
+		return AJObjectManagerApp.getInstance().materialize(path);
+
+	}
+
+	/* (non-Javadoc)
+	 * @see it.dc.bridge.om.EndpointInterface#getEndpoint()
+	 */
+	public String getEndpoint() throws BusException {
+
+		return endpointName;
+
+	}
+
+}
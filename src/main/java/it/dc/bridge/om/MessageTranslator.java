@@ -0,0 +1,142 @@
+package it.dc.bridge.om;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+import it.dc.bridge.om.CoAP.RequestCode;
+import it.dc.bridge.om.CoAP.ResponseCode;
+
+/**
+ * The <tt>MessageTranslator</tt> translates the AllJoyn messages
+ * ({@link CoAPRequestMessage} and {@link CoAPResponseMessage}) into
+ * Californium messages and vice versa.
+ * <p>
+ * The translation runs twice for every method call and once for every
+ * notification, so it only touches the options that are actually present
+ * and passes the payload through without copying it.
+ */
+final class MessageTranslator {
+
+	/*
+	 * The class provides only static methods,
+	 * so the constructor must be private.
+	 */
+	private MessageTranslator() {
+
+	}
+
+	/**
+	 * Starting from a {@link CoAPRequestMessage}, the method fills a new Californium
+	 * <tt>Request</tt> message.
+	 * 
+	 * @param code the request code
+	 * @param request the CoAP request
+	 * @return the Californium CoAP request
+	 */
+	static Request toRequest(final RequestCode code, final CoAPRequestMessage request) {
+
+		// create the request
+		Request coapRequest = new Request(Code.valueOf(code.value));
+
+		// set confirmable
+		coapRequest.setConfirmable(true);
+
+		// the token is set by the proxy when the request is sent
+
+		// the payload is shared, not copied
+		coapRequest.setPayload(request.getPayload());
+
+		// copy the options, only if there are any
+		Options options = request.getOptions();
+		if (options != null && !options.isEmpty()) {
+			copyOptions(options, coapRequest.getOptions());
+		}
+
+		// copy the query attributes
+		Map<String,String> attributes = request.getAttributes();
+		if (attributes != null && !attributes.isEmpty()) {
+			coapRequest.getOptions().setUriQuery(toQuery(attributes));
+		}
+
+		return coapRequest;
+
+	}
+
+	/**
+	 * Starting from a Californium <tt>Response</tt>, the method fills a new
+	 * {@link CoAPResponseMessage}.
+	 * 
+	 * @param coapResponse the Californium CoAP response message
+	 * @return the CoAPResponse message
+	 */
+	static ResponseMessage toResponseMessage(final Response coapResponse) {
+
+		// create the response
+		ResponseMessage response = new ResponseMessage(ResponseCode.valueOf(coapResponse.getCode().value));
+
+		// copy the options
+		OptionSet coapOpt = coapResponse.getOptions();
+		Options options = response.getOptions();
+		if (coapOpt.hasContentFormat())
+			options.setContentFormat(coapOpt.getContentFormat());
+		if (coapOpt.getETagCount() > 0)
+			options.setEtag(coapOpt.getETags());
+		if (coapOpt.hasAccept())
+			options.setAccept(coapOpt.getAccept());
+		if (coapOpt.getIfMatchCount() > 0)
+			options.setIfMatch(coapOpt.getIfMatch());
+		options.setIfNoneMatch(coapOpt.hasIfNoneMatch());
+		options.setSize1(coapOpt.getSize1());
+
+		// the payload is shared, not copied
+		response.setPayload(coapResponse.getPayload());
+
+		return response;
+
+	}
+
+	/*
+	 * Copies the AllJoyn options into the Californium option set.
+	 */
+	private static void copyOptions(final Options options, final OptionSet coapOpt) {
+
+		if (options.hasContentFormat())
+			coapOpt.setContentFormat(options.getContentFormat());
+		for (String e : options.etags)
+			coapOpt.addETag(Options.toBytes(e));
+		if (options.hasAccept())
+			coapOpt.setAccept(options.getAccept());
+		for (String e : options.ifMatch)
+			coapOpt.addIfMatch(Options.toBytes(e));
+		if (options.getIfNoneMatch())
+			coapOpt.setIfNoneMatch(true);
+		if (options.size1 > -1)
+			coapOpt.setSize1(options.size1);
+
+	}
+
+	/*
+	 * Builds the query string from the attributes: "key1=value1&key2=value2".
+	 */
+	private static String toQuery(final Map<String, String> attributes) {
+
+		Iterator<Map.Entry<String, String>> it = attributes.entrySet().iterator();
+		Map.Entry<String, String> entry = it.next();
+
+		StringBuilder builder = new StringBuilder(16 * attributes.size());
+		builder.append(entry.getKey()).append('=').append(entry.getValue());
+		while (it.hasNext()) {
+			entry = it.next();
+			builder.append('&').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+
+		return builder.toString();
+
+	}
+
+}
@@ -0,0 +1,485 @@
+package it.dc.bridge.om;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+import org.alljoyn.bus.BusObject;
+import org.alljoyn.bus.Status;
+import org.eclipse.californium.core.coap.Request;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import it.dc.bridge.proxy.CoAPProxy;
+
+/**
+ * An <tt>Observation</tt> collects the {@link Subscriber}s of an observed object
+ * and delivers them the notifications.
+ * <p>
+ * By default every subscriber receives its own unicast signal, so a notification
+ * costs one signal for each subscriber. When the number of subscribers reaches
+ * the broadcast threshold, the observation can switch to a broadcast delivery mode:
+ * <ul>
+ * <li><tt>sessioncast</tt>: one signal for each session the subscribers joined
+ * (the bridge session is multipoint, so usually a single signal)</li>
+ * <li><tt>sessionless</tt>: one sessionless signal</li>
+ * </ul>
+ * In both modes the clients receive the signal according to their match rule.
+ * The observation goes back to unicast delivery when the subscribers are
+ * less than half the threshold. A broadcast signal reaches every client,
+ * so an object with a subscriber asking for a minimum interval between
+ * notifications (see {@link Subscriber#MIN_INTERVAL_ATTRIBUTE}) is always
+ * notified with unicast signals.
+ * <p>
+ * The observation also drives the observe relationship with the CoAP server.
+ * Its {@link State} changes under the observation lock, so that the
+ * registrations and cancellations of an object are serialized, while the
+ * handshakes with the CoAP server run asynchronously and different objects
+ * proceed concurrently. The clients subscribing while a handshake is pending
+ * wait for that handshake instead of starting a new one.
+ */
+class Observation {
+
+	/* the logger */
+	private static final Logger LOGGER = Logger.getGlobal();
+
+	/**
+	 * The notification delivery modes.
+	 */
+	enum DeliveryMode {
+
+		/** A signal for each subscriber. */
+		UNICAST,
+
+		/** A signal for each session. */
+		SESSIONCAST,
+
+		/** A single sessionless signal. */
+		SESSIONLESS;
+
+		/**
+		 * Converts the specified string to a delivery mode.
+		 * Unknown values are considered as unicast.
+		 * 
+		 * @param value the string value
+		 * @return the delivery mode
+		 */
+		static DeliveryMode parse(String value) {
+			if ("sessioncast".equalsIgnoreCase(value))
+				return SESSIONCAST;
+			if ("sessionless".equalsIgnoreCase(value))
+				return SESSIONLESS;
+			return UNICAST;
+		}
+	}
+
+	/**
+	 * The states of the observe relationship with the CoAP server.
+	 */
+	enum State {
+
+		/** The object is not observed. */
+		IDLE,
+
+		/** The observe registration has been sent. */
+		REGISTERING,
+
+		/** The object is observed. */
+		OBSERVING,
+
+		/** The observe cancellation has been sent. */
+		CANCELLING
+
+	}
+
+	/* the broadcast mode used above the threshold ("off" keeps the unicast delivery) */
+	private static final DeliveryMode BROADCAST_MODE = DeliveryMode.parse(System.getProperty("bridge.notify.broadcast", "off"));
+
+	/* the number of subscribers from which the broadcast mode is used */
+	private static final int BROADCAST_THRESHOLD = Integer.getInteger("bridge.notify.threshold", 16);
+
+	/* the observed object path */
+	private final String objectPath;
+
+	/* the observed object */
+	private final BusObject resource;
+
+	/* map containing the <uniqueName, subscriber> pair for each subscriber */
+	private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<String, Subscriber>();
+
+	/* the broadcast subscribers, or null if the delivery is unicast */
+	private volatile Collection<Subscriber> channels;
+
+	/* the state of the observe relationship, guarded by this */
+	private State state = State.IDLE;
+
+	/* the subscribers waiting for the pending registration, guarded by this */
+	private final Map<String, Subscriber> waiting = new HashMap<String, Subscriber>();
+
+	/* the result of the pending registration, guarded by this */
+	private SettableFuture<Status> registration;
+
+	/* the request of the pending registration, guarded by this */
+	private Request request;
+
+	/**
+	 * Instantiates a new observation of the specified object.
+	 * 
+	 * @param objectPath the object path
+	 * @param resource the observed object
+	 */
+	Observation(String objectPath, BusObject resource) {
+
+		this.objectPath = objectPath;
+		this.resource = resource;
+
+	}
+
+	/**
+	 * Returns the observed object.
+	 * 
+	 * @return the observed object
+	 */
+	BusObject getResource() {
+
+		return resource;
+
+	}
+
+	/**
+	 * Subscribes a client to the object. If the object is not observed yet,
+	 * the observe registration is sent to the CoAP server, otherwise the
+	 * client joins the pending registration or the existing observation.
+	 * The client is added to the subscribers when the registration succeeds.
+	 * 
+	 * @param subscriber the subscriber
+	 * @param request the observe request, used if a registration is needed
+	 * @return the future registration status
+	 */
+	synchronized ListenableFuture<Status> subscribe(Subscriber subscriber, Request request) {
+
+		String uniqueName = subscriber.getUniqueName();
+
+		if (state == State.OBSERVING) {
+			if (!subscribers.containsKey(uniqueName)) {
+				subscribers.put(uniqueName, subscriber);
+				updateDeliveryMode();
+			}
+			return Futures.immediateFuture(Status.OK);
+		}
+
+		if (!waiting.containsKey(uniqueName)) {
+			waiting.put(uniqueName, subscriber);
+		}
+		if (registration == null) {
+			registration = SettableFuture.create();
+			this.request = request;
+		}
+
+		// an immediate registration result clears the field before returning
+		SettableFuture<Status> ret = registration;
+		if (state == State.IDLE) {
+			startRegistration();
+		}
+
+		// a cancelling observation registers again when the cancellation completes
+		return ret;
+
+	}
+
+	/**
+	 * Removes the subscriber with the specified unique name.
+	 * If it is the last one, the observation is cancelled on the CoAP server.
+	 * 
+	 * @param uniqueName the client unique name
+	 * @return the removed subscriber, or null if not present
+	 */
+	synchronized Subscriber remove(String uniqueName) {
+
+		Subscriber subscriber = subscribers.remove(uniqueName);
+		if (subscriber == null) {
+			return waiting.remove(uniqueName);
+		}
+		updateDeliveryMode();
+
+		if (subscribers.isEmpty() && state == State.OBSERVING) {
+			startCancellation();
+		}
+
+		return subscriber;
+
+	}
+
+	/**
+	 * Removes the specified subscriber, only if it is still the subscription
+	 * of its client: a client that was already subscribed keeps its subscription.
+	 * 
+	 * @param subscriber the subscriber
+	 * @return true if the subscriber has been removed
+	 */
+	synchronized boolean remove(Subscriber subscriber) {
+
+		String uniqueName = subscriber.getUniqueName();
+		if (waiting.get(uniqueName) == subscriber) {
+			waiting.remove(uniqueName);
+			return true;
+		}
+		if (subscribers.get(uniqueName) != subscriber) {
+			return false;
+		}
+		remove(uniqueName);
+
+		return true;
+
+	}
+
+	/**
+	 * Removes all the subscribers and cancels the observation on the CoAP server.
+	 */
+	synchronized void clear() {
+
+		subscribers.clear();
+		waiting.clear();
+		updateDeliveryMode();
+
+		if (state == State.OBSERVING) {
+			startCancellation();
+		}
+
+	}
+
+	/**
+	 * Returns the state of the observe relationship.
+	 * 
+	 * @return the state
+	 */
+	synchronized State getState() {
+
+		return state;
+
+	}
+
+	/*
+	 * Sends the observe registration. Called holding the lock.
+	 */
+	private void startRegistration() {
+
+		state = State.REGISTERING;
+		final ListenableFuture<Status> handshake = CoAPProxy.getInstance().registerAsync(objectPath, request);
+		handshake.addListener(new Runnable() {
+			public void run() {
+				registered(getStatus(handshake));
+			}
+		}, MoreExecutors.sameThreadExecutor());
+
+	}
+
+	/*
+	 * Completes the registration: the waiting clients become subscribers.
+	 */
+	private synchronized void registered(Status status) {
+
+		SettableFuture<Status> result = registration;
+		registration = null;
+		request = null;
+
+		if (status == Status.OK) {
+			state = State.OBSERVING;
+			subscribers.putAll(waiting);
+			updateDeliveryMode();
+			LOGGER.info("Object "+objectPath+" observed with "+subscribers.size()+" subscribers");
+
+			// all the clients left while the handshake was pending
+			if (subscribers.isEmpty()) {
+				startCancellation();
+			}
+		} else {
+			state = State.IDLE;
+			LOGGER.warning("Observe registration of "+objectPath+" failed: "+status);
+		}
+		waiting.clear();
+
+		result.set(status);
+
+	}
+
+	/*
+	 * Sends the observe cancellation. Called holding the lock.
+	 */
+	private void startCancellation() {
+
+		state = State.CANCELLING;
+		CoAPProxy.getInstance().cancelAsync(objectPath).addListener(new Runnable() {
+			public void run() {
+				cancelled();
+			}
+		}, MoreExecutors.sameThreadExecutor());
+
+	}
+
+	/*
+	 * Completes the cancellation: the clients subscribed in the meantime
+	 * start a new registration.
+	 */
+	private synchronized void cancelled() {
+
+		state = State.IDLE;
+		if (registration != null) {
+			startRegistration();
+		}
+
+	}
+
+	/*
+	 * Returns the status of a completed handshake.
+	 */
+	private static Status getStatus(ListenableFuture<Status> handshake) {
+
+		try {
+			return handshake.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return Status.FAIL;
+		} catch (ExecutionException e) {
+			LOGGER.severe("Observe registration failed: " + e.getCause());
+			return Status.FAIL;
+		}
+
+	}
+
+	/**
+	 * Checks if a client is subscribed.
+	 * 
+	 * @param uniqueName the client unique name
+	 * @return true if subscribed
+	 */
+	boolean contains(String uniqueName) {
+
+		return subscribers.containsKey(uniqueName);
+
+	}
+
+	/**
+	 * Checks if there are no subscribers.
+	 * 
+	 * @return true if there are no subscribers
+	 */
+	synchronized boolean isEmpty() {
+
+		return subscribers.isEmpty() && waiting.isEmpty();
+
+	}
+
+	/**
+	 * Delivers the notification to the subscribers, according to the delivery mode.
+	 * 
+	 * @param message the notification message
+	 * @param executor the executor sending the signals
+	 */
+	void notify(ResponseMessage message, Executor executor) {
+
+		Collection<Subscriber> targets = channels;
+		if (targets == null) {
+			targets = subscribers.values();
+		}
+
+		for (Subscriber subscriber : targets) {
+			subscriber.deliver(message, executor);
+		}
+
+	}
+
+	/*
+	 * Switches between the unicast and the broadcast delivery modes
+	 * according to the number of subscribers.
+	 */
+	private void updateDeliveryMode() {
+
+		int count = subscribers.size();
+
+		if (BROADCAST_MODE == DeliveryMode.UNICAST) {
+			return;
+		}
+
+		// the broadcast signals would ignore the minimum interval of the subscriber
+		if (hasMinInterval()) {
+			if (channels != null) {
+				channels = null;
+				LOGGER.info("Object "+objectPath+" has a subscriber with a minimum interval: switched to "+DeliveryMode.UNICAST+" notifications");
+			}
+			return;
+		}
+
+		if (channels == null && count >= BROADCAST_THRESHOLD) {
+			channels = buildChannels();
+			LOGGER.info("Object "+objectPath+" has "+count+" subscribers: switched to "+BROADCAST_MODE+" notifications");
+		} else if (channels != null && count < BROADCAST_THRESHOLD / 2) {
+			channels = null;
+			LOGGER.info("Object "+objectPath+" has "+count+" subscribers: switched to "+DeliveryMode.UNICAST+" notifications");
+		} else if (channels != null && BROADCAST_MODE == DeliveryMode.SESSIONCAST) {
+			// the sessions of the subscribers may have changed
+			channels = buildChannels();
+		}
+
+	}
+
+	/*
+	 * Checks if a subscriber asked for a minimum interval between notifications.
+	 */
+	private boolean hasMinInterval() {
+
+		for (Subscriber subscriber : subscribers.values()) {
+			if (subscriber.hasMinInterval()) {
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	/*
+	 * Creates the broadcast subscribers, reusing the ones already created.
+	 */
+	private Collection<Subscriber> buildChannels() {
+
+		if (BROADCAST_MODE == DeliveryMode.SESSIONLESS) {
+			if (channels != null) {
+				return channels;
+			}
+			return Collections.singletonList(new Subscriber(resource));
+		}
+
+		Map<Integer, Subscriber> sessions = new HashMap<Integer, Subscriber>();
+		if (channels != null) {
+			for (Subscriber channel : channels) {
+				sessions.put(channel.getSessionId(), channel);
+			}
+		}
+
+		Map<Integer, Subscriber> ret = new HashMap<Integer, Subscriber>();
+		for (Subscriber subscriber : subscribers.values()) {
+			int sessionId = subscriber.getSessionId();
+			if (ret.containsKey(sessionId)) {
+				continue;
+			}
+			Subscriber channel = sessions.get(sessionId);
+			if (channel == null) {
+				channel = new Subscriber(resource, sessionId);
+			}
+			ret.put(sessionId, channel);
+		}
+
+		return Collections.unmodifiableCollection(ret.values());
+
+	}
+
+}
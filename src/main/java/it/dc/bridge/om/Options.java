@@ -1,5 +1,6 @@
 package it.dc.bridge.om;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -15,6 +16,16 @@ public class Options {
 	
 	/** the undefined value */
 	private static final int UNDEFINED = -1;
+
+	/** the empty ETag list, shared by all the option sets without ETags */
+	private static final String[] NO_ETAGS = new String[0];
+
+	/**
+	 * The charset of the ETags. The ETags are opaque bytes, carried as strings
+	 * on the bus (signature "as"): each byte is mapped to the char with the
+	 * same value, so any ETag is converted back without loss.
+	 */
+	private static final Charset ETAG_CHARSET = Charset.forName("ISO-8859-1");
 	
 	/** Representation format of the message payload. */
 	@Position(0)
@@ -53,12 +64,12 @@ public class Options {
 	 */
 	public Options() {
 		
-		setContentFormat(null);
-		setEtag(null);
-		setAccept(null);
-		setIfMatch(null);
-		setIfNoneMatch(false);
-		setSize1(-1);
+		this.contentFormat = UNDEFINED;
+		this.etags = NO_ETAGS;
+		this.accept = UNDEFINED;
+		this.ifMatch = NO_ETAGS;
+		this.ifNoneMatch = false;
+		this.size1 = -1;
 		
 	}
 
@@ -69,12 +80,24 @@ public class Options {
 	 */
 	public Options(Options origin) {
 		
-		setContentFormat(origin.getContentFormat());
-		setEtag(origin.getEtag());
-		setAccept(origin.getAccept());
-		setIfMatch(origin.getIfMatch());
-		setIfNoneMatch(origin.getIfNoneMatch());
-		setSize1(origin.getSize1());
+		this.contentFormat = origin.contentFormat;
+		this.etags = origin.etags.length == 0 ? NO_ETAGS : origin.etags.clone();
+		this.accept = origin.accept;
+		this.ifMatch = origin.ifMatch.length == 0 ? NO_ETAGS : origin.ifMatch.clone();
+		this.ifNoneMatch = origin.ifNoneMatch;
+		this.size1 = origin.size1;
+		
+	}
+
+	/**
+	 * Checks if no option is present.
+	 * 
+	 * @return true if there are no options
+	 */
+	public boolean isEmpty() {
+		
+		return contentFormat == UNDEFINED && etags.length == 0 && accept == UNDEFINED
+				&& ifMatch.length == 0 && !ifNoneMatch && size1 < 0;
 		
 	}
 
@@ -121,10 +144,10 @@ public class Options {
 	 */
 	public List<byte[]> getEtag() {
 		
-		List<byte[]> ret = new ArrayList<byte[]>();
+		List<byte[]> ret = new ArrayList<byte[]>(etags.length);
 		
 		for (String e : etags)
-			ret.add(e.getBytes());
+			ret.add(toBytes(e));
 		
 		return ret;
 		
@@ -137,7 +160,7 @@ public class Options {
 	 */
 	public int getETagCount() {
 		
-		return getEtag().size();
+		return etags.length;
 		
 	}
 
@@ -151,13 +174,13 @@ public class Options {
 	 */
 	public void setEtag(List<byte[]> etag) {
 		
-		if(etag == null){
+		if(etag == null || etag.isEmpty()){
 			// AJ does not allow null value (signature is "aay")
-			this.etags = new String[]{};
+			this.etags = NO_ETAGS;
 		}else {
 			this.etags = new String[etag.size()];
 			for (int i = 0; i < etag.size(); i++) {
-				this.etags[i] = new String(etag.get(i));
+				this.etags[i] = fromBytes(etag.get(i));
 			}
 		}
 		
@@ -206,10 +229,10 @@ public class Options {
 	 */
 	public List<byte[]> getIfMatch() {
 		
-		List<byte[]> ret = new ArrayList<byte[]>();
+		List<byte[]> ret = new ArrayList<byte[]>(ifMatch.length);
 		
 		for (String e : ifMatch)
-			ret.add(e.getBytes());
+			ret.add(toBytes(e));
 		
 		return ret;
 		
@@ -222,7 +245,7 @@ public class Options {
 	 */
 	public int getIfMatchCount() {
 		
-		return getIfMatch().size();
+		return ifMatch.length;
 		
 	}
 
@@ -236,13 +259,13 @@ public class Options {
 	 */
 	public void setIfMatch(List<byte[]> ifMatch) {
 
-		if(ifMatch == null){
+		if(ifMatch == null || ifMatch.isEmpty()){
 			// AJ does not allow null value (signature is "aay")
-			this.ifMatch = new String[]{};
+			this.ifMatch = NO_ETAGS;
 		}else {
 			this.ifMatch = new String[ifMatch.size()];
 			for (int i = 0; i < ifMatch.size(); i++) {
-				this.ifMatch[i] = new String(ifMatch.get(i));
+				this.ifMatch[i] = fromBytes(ifMatch.get(i));
 			}
 		}
 		
@@ -292,4 +315,28 @@ public class Options {
 		
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Converts an ETag, as carried on the bus, to its bytes.
+	 * 
+	 * @param etag the ETag string
+	 * @return the ETag bytes
+	 */
+	static byte[] toBytes(String etag) {
+		
+		return etag.getBytes(ETAG_CHARSET);
+		
+	}
+
+	/**
+	 * Converts the bytes of an ETag to the string carried on the bus.
+	 * 
+	 * @param etag the ETag bytes
+	 * @return the ETag string
+	 */
+	static String fromBytes(byte[] etag) {
+		
+		return new String(etag, ETAG_CHARSET);
+		
+	}
+
+}
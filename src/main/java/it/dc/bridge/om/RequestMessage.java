@@ -38,7 +38,7 @@ public class RequestMessage implements CoAPRequestMessage{
 		options = new Options();
 		attributes = new HashMap<String, String>();
 		// AJ does not allow null value (signature is "ay")
-		payload = new byte[]{};
+		payload = CoAP.EMPTY_PAYLOAD;
 
 	}
 
@@ -120,7 +120,7 @@ public class RequestMessage implements CoAPRequestMessage{
 
 		if(payload == null) {
 			// AJ does not allow null value (signature is "ay")
-			this.payload = new byte[]{};
+			this.payload = CoAP.EMPTY_PAYLOAD;
 		}else {
 			this.payload = payload;
 		}
@@ -134,7 +134,7 @@ public class RequestMessage implements CoAPRequestMessage{
 
 		if(payload == null) {
 			// AJ does not allow null value (signature is "ay")
-			this.payload = new byte[]{};
+			this.payload = CoAP.EMPTY_PAYLOAD;
 		} else {
 			setPayload(payload.getBytes(CoAP.UTF8_CHARSET));
 		}
@@ -39,7 +39,7 @@ public class ResponseMessage implements CoAPResponseMessage{
 		this.code = ResponseCode.INTERNAL_SERVER_ERROR;
 		this.options = new Options();
 		// AJ does not allow null value (signature is "ay")
-		this.payload = new byte[]{};
+		this.payload = CoAP.EMPTY_PAYLOAD;
 
 	}
 
@@ -53,7 +53,7 @@ public class ResponseMessage implements CoAPResponseMessage{
 		this.code = code;
 		this.options = new Options();
 		// AJ does not allow null value (signature is "ay")
-		this.payload = new byte[]{};
+		this.payload = CoAP.EMPTY_PAYLOAD;
 
 	}
 
@@ -128,7 +128,7 @@ public class ResponseMessage implements CoAPResponseMessage{
 
 		if (payload == null) {
 			// AJ does not allow null value (signature is "ay")
-			this.payload = new byte[]{};
+			this.payload = CoAP.EMPTY_PAYLOAD;
 		} else {
 			this.payload = payload;
 		}
@@ -142,7 +142,7 @@ public class ResponseMessage implements CoAPResponseMessage{
 
 		if (payload == null) {
 			// AJ does not allow null value (signature is "ay")
-			this.payload = new byte[]{};
+			this.payload = CoAP.EMPTY_PAYLOAD;
 		} else {
 			setPayload(payload.getBytes(CoAP.UTF8_CHARSET));
 		}
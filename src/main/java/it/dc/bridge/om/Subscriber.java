@@ -0,0 +1,340 @@
+package it.dc.bridge.om;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.alljoyn.bus.BusException;
+import org.alljoyn.bus.BusObject;
+import org.alljoyn.bus.SignalEmitter;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A <tt>Subscriber</tt> represents an AllJoyn client observing an object.
+ * It owns the <tt>SignalEmitter</tt> towards the client and the signal
+ * interface obtained from it, which is created once and reused for every
+ * notification.
+ * <p>
+ * A subscriber can also represent a group of clients: in this case the
+ * signal is session-cast to all the members of a session or sent as a
+ * sessionless signal, and each client filters it by its match rule.
+ * <p>
+ * Notifications are delivered by the threads of a shared executor.
+ * The deliveries to the same subscriber are serialized, so that the client
+ * receives the notifications in order, while different subscribers are
+ * served in parallel: a slow or failing client does not delay the others.
+ * <p>
+ * The queue of a subscriber is bounded: when it is full, the oldest
+ * notification is dropped, so that a slow client receives fewer but
+ * fresher notifications. A client can also ask for a minimum interval
+ * between two notifications with the {@value #MIN_INTERVAL_ATTRIBUTE}
+ * registration attribute: the notifications arriving in the meantime
+ * are conflated and only the latest one is sent.
+ */
+class Subscriber {
+
+	/** The registration attribute with the minimum interval between notifications (in seconds). */
+	static final String MIN_INTERVAL_ATTRIBUTE = "pmin";
+
+	/* the logger */
+	private static final Logger LOGGER = Logger.getGlobal();
+
+	/* the maximum number of notifications queued for a subscriber */
+	private static final int QUEUE_SIZE = Math.max(1, Integer.getInteger("bridge.notify.subscriber.queue", 8));
+
+	/* the timer postponing the deliveries until the minimum interval has elapsed */
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("aj-notify-timer").setDaemon(true).build());
+
+	/* the client unique name, or a description of the group of clients */
+	private final String uniqueName;
+
+	/* the session the client joined */
+	private final int sessionId;
+
+	/* the signal emitter */
+	private final SignalEmitter emitter;
+
+	/* the CoAP interface for send signals, taken from the emitter */
+	private final CoAPInterface signal;
+
+	/* the notifications waiting to be delivered, guarded by itself */
+	private final Deque<ResponseMessage> queue = new ArrayDeque<ResponseMessage>();
+
+	/* the minimum interval (in nanoseconds) between two notifications */
+	private volatile long minInterval;
+
+	/* the time of the last delivery, as returned by System.nanoTime() */
+	private long lastDelivery;
+
+	/* true if a notification has been delivered */
+	private boolean delivered;
+
+	/* true if a delivery task is scheduled or running */
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	/* the task delivering the queued notifications */
+	private final Runnable deliveryTask = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	/* the task resuming the delivery after the minimum interval */
+	private final Runnable resumeTask = new Runnable() {
+		public void run() {
+			resume();
+		}
+	};
+
+	/* the executor running the delivery task */
+	private volatile Executor executor;
+
+	/**
+	 * Instantiates a new subscriber with a unicast signal emitter.
+	 * 
+	 * @param source the object emitting the signals
+	 * @param uniqueName the client unique name
+	 * @param sessionId the session the client joined
+	 */
+	Subscriber(BusObject source, String uniqueName, int sessionId) {
+
+		this.uniqueName = uniqueName;
+		this.sessionId = sessionId;
+		this.emitter = new SignalEmitter(source, uniqueName, sessionId, SignalEmitter.GlobalBroadcast.Off);
+		this.signal = emitter.getInterface(CoAPInterface.class);
+
+	}
+
+	/**
+	 * Instantiates a new subscriber that session-casts the signals
+	 * to all the members of the specified session.
+	 * 
+	 * @param source the object emitting the signals
+	 * @param sessionId the session
+	 */
+	Subscriber(BusObject source, int sessionId) {
+
+		this.uniqueName = "session "+sessionId;
+		this.sessionId = sessionId;
+		this.emitter = new SignalEmitter(source, sessionId, SignalEmitter.GlobalBroadcast.Off);
+		this.signal = emitter.getInterface(CoAPInterface.class);
+
+	}
+
+	/**
+	 * Instantiates a new subscriber that sends sessionless signals.
+	 * 
+	 * @param source the object emitting the signals
+	 */
+	Subscriber(BusObject source) {
+
+		this.uniqueName = "sessionless";
+		this.sessionId = 0;
+		this.emitter = new SignalEmitter(source, SignalEmitter.GlobalBroadcast.Off);
+		this.emitter.setSessionlessFlag(true);
+		this.signal = emitter.getInterface(CoAPInterface.class);
+
+	}
+
+	/**
+	 * Returns the client unique name.
+	 * 
+	 * @return the unique name
+	 */
+	String getUniqueName() {
+
+		return uniqueName;
+
+	}
+
+	/**
+	 * Returns the session the client joined.
+	 * 
+	 * @return the session identifier
+	 */
+	int getSessionId() {
+
+		return sessionId;
+
+	}
+
+	/**
+	 * Sets the minimum interval between two notifications.
+	 * 
+	 * @param millis the interval in milliseconds, 0 to send every notification
+	 */
+	void setMinInterval(long millis) {
+
+		this.minInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+
+	}
+
+	/**
+	 * Checks if the subscriber has a minimum interval between two notifications.
+	 * 
+	 * @return true if the notifications are conflated
+	 */
+	boolean hasMinInterval() {
+
+		return minInterval > 0;
+
+	}
+
+	/**
+	 * Returns the minimum interval (in milliseconds) requested by the
+	 * {@value #MIN_INTERVAL_ATTRIBUTE} attribute of the specified attributes.
+	 * 
+	 * @param attributes the registration attributes
+	 * @return the interval in milliseconds, 0 if not requested or not valid
+	 */
+	static long parseMinInterval(Map<String, String> attributes) {
+
+		String value = attributes == null ? null : attributes.get(MIN_INTERVAL_ATTRIBUTE);
+		if (value == null) {
+			return 0;
+		}
+
+		try {
+			double seconds = Double.parseDouble(value);
+			return seconds > 0 ? (long) (seconds * 1000) : 0;
+		} catch (NumberFormatException e) {
+			LOGGER.warning("Invalid "+MIN_INTERVAL_ATTRIBUTE+" attribute: "+value);
+			return 0;
+		}
+
+	}
+
+	/**
+	 * Queues a notification and schedules its delivery on the specified executor.
+	 * If the queue is full, the oldest notification is dropped.
+	 * The method does not wait for the signal to be sent.
+	 * 
+	 * @param message the notification message
+	 * @param executor the executor sending the signal
+	 */
+	void deliver(ResponseMessage message, Executor executor) {
+
+		this.executor = executor;
+		synchronized (queue) {
+			// the latest notification wins
+			if (queue.size() >= QUEUE_SIZE) {
+				queue.poll();
+			}
+			queue.offer(message);
+		}
+		schedule();
+
+	}
+
+	/*
+	 * Schedules the delivery task, unless it is already scheduled.
+	 */
+	private void schedule() {
+
+		if (!scheduled.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			executor.execute(deliveryTask);
+		} catch (RejectedExecutionException e) {
+			// the messages stay queued until the next notification
+			scheduled.set(false);
+			LOGGER.warning("Notification delivery to "+uniqueName+" postponed: too many pending deliveries");
+		}
+
+	}
+
+	/*
+	 * Runs the postponed delivery task on the executor.
+	 */
+	private void resume() {
+
+		try {
+			executor.execute(deliveryTask);
+		} catch (RejectedExecutionException e) {
+			// the messages stay queued until the next notification
+			scheduled.set(false);
+			LOGGER.warning("Notification delivery to "+uniqueName+" postponed: too many pending deliveries");
+		}
+
+	}
+
+	/*
+	 * Sends the queued notifications. If the minimum interval has not elapsed,
+	 * the delivery is postponed and the task keeps the subscriber scheduled.
+	 */
+	private void drain() {
+
+		while (true) {
+			ResponseMessage message;
+			long wait = 0;
+			synchronized (queue) {
+				if (minInterval == 0) {
+					message = queue.poll();
+				} else {
+					if (delivered) {
+						wait = lastDelivery + minInterval - System.nanoTime();
+					}
+					// only the freshest notification is sent
+					message = wait > 0 ? null : queue.pollLast();
+					if (message != null) {
+						queue.clear();
+					}
+				}
+			}
+
+			if (wait > 0 && !isQueueEmpty()) {
+				try {
+					timer.schedule(resumeTask, wait, TimeUnit.NANOSECONDS);
+					return;
+				} catch (RejectedExecutionException e) {
+					// the messages stay queued until the next notification
+					scheduled.set(false);
+					return;
+				}
+			}
+			if (message == null) {
+				break;
+			}
+
+			try {
+				// send the notification
+				signal.notification(message);
+			} catch (BusException exception) {
+				LOGGER.severe("AllJoyn BusException during notification to "+uniqueName+".");
+			}
+			lastDelivery = System.nanoTime();
+			delivered = true;
+		}
+
+		scheduled.set(false);
+
+		// a notification may have been queued after the last poll
+		if (!isQueueEmpty()) {
+			schedule();
+		}
+
+	}
+
+	/*
+	 * Checks if there are notifications waiting to be delivered.
+	 */
+	private boolean isQueueEmpty() {
+
+		synchronized (queue) {
+			return queue.isEmpty();
+		}
+
+	}
+
+}
@@ -0,0 +1,423 @@
+package it.dc.bridge.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.coap.Response;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The <tt>CacheSnapshot</tt> keeps a copy of the {@link ProxyCacheResource}
+ * in a file, so that the cached responses survive a restart of the bridge.
+ * <p>
+ * The snapshot is written periodically and at shutdown to a temporary file,
+ * then renamed over the previous one, so a crash never leaves a partial
+ * snapshot. Each record holds the URI, the content format, the absolute
+ * arrival time, the max-age and the etag of a representation, followed by
+ * the serialized response.
+ * <p>
+ * At startup the previous snapshot is mapped and only indexed by URI: a
+ * record is read when its URI is first requested, and the records never
+ * requested are carried over to the next snapshot while they are fresh.
+ * An expired record with an etag, which can still be revalidated, is kept
+ * only up to a maximum age.
+ */
+class CacheSnapshot {
+
+	private static final Logger LOGGER = Logger.getGlobal();
+
+	/* the first bytes of a snapshot file */
+	private static final int MAGIC = 0x414A4353;
+
+	/* the version of the file format */
+	private static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* the snapshot file */
+	private final File file;
+
+	/* the maximum age of an expired record kept for its etag, in milliseconds */
+	private final long revalidableAge;
+
+	/* the records of the previous snapshot not requested yet, by URI */
+	private final ConcurrentMap<String, List<Integer>> pending = new ConcurrentHashMap<String, List<Integer>>();
+
+	/* the mapped previous snapshot, null when all its records have been requested */
+	private volatile ByteBuffer previous;
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("cache-snapshot").setDaemon(true).build());
+
+	/**
+	 * Instantiates a new snapshot, indexing the previous snapshot file if present.
+	 *
+	 * @param file the snapshot file
+	 * @param revalidableAge the maximum age of an expired record with an etag
+	 * @param unit the time unit of the age
+	 */
+	CacheSnapshot(File file, long revalidableAge, TimeUnit unit) {
+
+		this.file = file;
+		this.revalidableAge = unit.toMillis(revalidableAge);
+
+		if (file.isFile()) {
+			try {
+				index(map(file));
+			} catch (IOException e) {
+				LOGGER.warning("Unable to read the cache snapshot " + file + ": " + e.getMessage());
+			} catch (RuntimeException e) {
+				pending.clear();
+				LOGGER.warning("Corrupted cache snapshot " + file + ", ignored");
+			}
+		}
+
+	}
+
+	/**
+	 * Starts writing the snapshot periodically, and at shutdown.
+	 *
+	 * @param writer the task writing the snapshot
+	 * @param period the time between two snapshots, in milliseconds
+	 */
+	void start(final Runnable writer, long period) {
+
+		timer.scheduleWithFixedDelay(writer, period, period, TimeUnit.MILLISECONDS);
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				timer.shutdownNow();
+				writer.run();
+			}
+		}, "cache-snapshot-shutdown"));
+
+	}
+
+	/**
+	 * Checks if the previous snapshot has records of the URI not requested yet.
+	 *
+	 * @param uri the cache key
+	 * @return true if the URI can be restored
+	 */
+	boolean contains(String uri) {
+
+		return pending.containsKey(uri);
+
+	}
+
+	/**
+	 * Takes the records of the URI from the previous snapshot. The records
+	 * are returned only once: a URI cached again is not restored.
+	 *
+	 * @param uri the cache key
+	 * @return the restored representations, or null if the URI has no records
+	 */
+	List<Restored> take(String uri) {
+
+		List<Integer> offsets = pending.remove(uri);
+		ByteBuffer snapshot = previous;
+		if (offsets == null || snapshot == null) {
+			return null;
+		}
+
+		long nanoTime = System.nanoTime();
+		long currentTime = System.currentTimeMillis();
+
+		List<Restored> ret = new ArrayList<Restored>(offsets.size());
+		for (int offset : offsets) {
+			ByteBuffer buffer = snapshot.duplicate();
+			buffer.position(offset + 4);
+			readString(buffer);
+			int mediaType = buffer.getInt();
+			boolean isDefault = buffer.get() != 0;
+			long arrival = buffer.getLong();
+			buffer.getLong();
+			readBytes(buffer);
+			byte[] data = readBytes(buffer);
+
+			// the arrival time on the clock of System.nanoTime()
+			long timestamp = nanoTime - TimeUnit.MILLISECONDS.toNanos(currentTime - arrival);
+			ret.add(new Restored(mediaType, isDefault, StoredResponse.deserialize(data, timestamp)));
+		}
+
+		release();
+
+		return ret;
+
+	}
+
+	/**
+	 * Forgets the records of the URI in the previous snapshot,
+	 * since the resource has changed.
+	 *
+	 * @param uri the cache key
+	 */
+	void discard(String uri) {
+
+		if (pending.remove(uri) != null) {
+			release();
+		}
+
+	}
+
+	/**
+	 * Writes the snapshot, with the records of the previous snapshot
+	 * not requested yet.
+	 *
+	 * @param records the cached representations
+	 */
+	synchronized void write(List<Record> records) {
+
+		List<byte[]> encoded = new ArrayList<byte[]>(records.size());
+		Set<String> uris = new HashSet<String>();
+		long currentTime = System.currentTimeMillis();
+		long nanoTime = System.nanoTime();
+
+		for (Record record : records) {
+			Response response = record.stored.getResponse();
+			if (response == null) {
+				continue;
+			}
+			long arrival = currentTime - TimeUnit.NANOSECONDS.toMillis(nanoTime - record.stored.getTimestamp());
+			encoded.add(encode(record.uri, record.mediaType, record.isDefault, arrival, record.stored.getMaxAge(), response));
+			uris.add(record.uri);
+		}
+
+		// the records not requested, still fresh, if their URI has not been cached again
+		ByteBuffer snapshot = previous;
+		if (snapshot != null) {
+			for (Map.Entry<String, List<Integer>> untouched : pending.entrySet()) {
+				if (uris.contains(untouched.getKey())) {
+					continue;
+				}
+				for (int offset : untouched.getValue()) {
+					ByteBuffer buffer = snapshot.duplicate();
+					buffer.position(offset);
+					byte[] record = new byte[4 + buffer.getInt()];
+					buffer.position(offset);
+					buffer.get(record);
+					if (isFresh(record, currentTime)) {
+						encoded.add(record);
+					}
+				}
+			}
+		}
+
+		int size = 12;
+		for (byte[] record : encoded) {
+			size += record.length;
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			RandomAccessFile out = new RandomAccessFile(temp, "rw");
+			try {
+				// written through the channel: a mapping would hold the file until collected
+				FileChannel channel = out.getChannel();
+				out.setLength(size);
+				ByteBuffer header = ByteBuffer.allocate(12);
+				header.putInt(MAGIC).putInt(VERSION).putInt(encoded.size());
+				header.flip();
+				writeFully(channel, header);
+				for (byte[] record : encoded) {
+					writeFully(channel, ByteBuffer.wrap(record));
+				}
+				channel.force(true);
+			} finally {
+				out.close();
+			}
+
+			if (!temp.renameTo(file)) {
+				throw new IOException("cannot rename " + temp);
+			}
+			LOGGER.fine("Cache snapshot written: " + encoded.size() + " responses");
+		} catch (IOException e) {
+			LOGGER.warning("Unable to write the cache snapshot " + file + ": " + e.getMessage());
+		}
+
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+
+	}
+
+	/*
+	 * Maps the snapshot file, read-only.
+	 */
+	private static ByteBuffer map(File file) throws IOException {
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+		} finally {
+			in.close();
+		}
+
+	}
+
+	/*
+	 * Indexes the records of the snapshot by URI.
+	 */
+	private void index(ByteBuffer snapshot) {
+
+		ByteBuffer buffer = snapshot.duplicate();
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			LOGGER.warning("Unknown cache snapshot format, ignored");
+			return;
+		}
+
+		int count = buffer.getInt();
+		for (int i = 0; i < count; i++) {
+			int offset = buffer.position();
+			int length = buffer.getInt();
+			String uri = readString(buffer);
+			buffer.position(offset + 4 + length);
+
+			List<Integer> offsets = pending.get(uri);
+			if (offsets == null) {
+				offsets = new ArrayList<Integer>(1);
+				pending.put(uri, offsets);
+			}
+			offsets.add(offset);
+		}
+
+		previous = snapshot;
+		LOGGER.info("Cache snapshot loaded: " + count + " responses");
+
+	}
+
+	/*
+	 * Drops the mapped snapshot when no more records are pending.
+	 */
+	private void release() {
+
+		if (pending.isEmpty()) {
+			previous = null;
+		}
+
+	}
+
+	/*
+	 * Encodes a record: its length, the URI, the content format, the default flag,
+	 * the arrival time, the max-age, the etag and the serialized response.
+	 */
+	private static byte[] encode(String uri, int mediaType, boolean isDefault, long arrival, long maxAge, Response response) {
+
+		byte[] key = uri.getBytes(UTF8);
+		byte[] etag = response.getOptions().getETagCount() > 0 ? response.getOptions().getETags().get(0) : new byte[0];
+		byte[] data = StoredResponse.serialize(response);
+
+		int length = 4 + key.length + 4 + 1 + 8 + 8 + 4 + etag.length + 4 + data.length;
+		ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+		buffer.putInt(length);
+		buffer.putInt(key.length).put(key);
+		buffer.putInt(mediaType);
+		buffer.put((byte) (isDefault ? 1 : 0));
+		buffer.putLong(arrival);
+		buffer.putLong(maxAge);
+		buffer.putInt(etag.length).put(etag);
+		buffer.putInt(data.length).put(data);
+
+		return buffer.array();
+
+	}
+
+	/*
+	 * Checks if an encoded record is fresh, or can be revalidated with its etag.
+	 */
+	private boolean isFresh(byte[] record, long currentTime) {
+
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		buffer.position(4);
+		readString(buffer);
+		buffer.position(buffer.position() + 5);
+		long arrival = buffer.getLong();
+		long maxAge = buffer.getLong();
+		boolean hasETag = buffer.getInt() > 0;
+
+		long age = currentTime - arrival;
+
+		return age < TimeUnit.SECONDS.toMillis(maxAge) || (hasETag && age < revalidableAge);
+
+	}
+
+	private static String readString(ByteBuffer buffer) {
+
+		return new String(readBytes(buffer), UTF8);
+
+	}
+
+	private static byte[] readBytes(ByteBuffer buffer) {
+
+		byte[] ret = new byte[buffer.getInt()];
+		buffer.get(ret);
+
+		return ret;
+
+	}
+
+	/**
+	 * A cached representation to write in the snapshot.
+	 */
+	static final class Record {
+
+		private final String uri;
+
+		private final int mediaType;
+
+		private final boolean isDefault;
+
+		private final StoredResponse stored;
+
+		Record(String uri, int mediaType, boolean isDefault, StoredResponse stored) {
+			this.uri = uri;
+			this.mediaType = mediaType;
+			this.isDefault = isDefault;
+			this.stored = stored;
+		}
+
+	}
+
+	/**
+	 * A representation read from the previous snapshot.
+	 */
+	static final class Restored {
+
+		/* the content format */
+		final int mediaType;
+
+		/* true if it is the response to a request without the accept option */
+		final boolean isDefault;
+
+		/* the response, with its arrival time on the clock of System.nanoTime() */
+		final Response response;
+
+		Restored(int mediaType, boolean isDefault, Response response) {
+			this.mediaType = mediaType;
+			this.isDefault = isDefault;
+			this.response = response;
+		}
+
+	}
+
+}
@@ -1,17 +1,31 @@
 package it.dc.bridge.proxy;
 
-import java.util.HashMap;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.alljoyn.bus.Status;
 import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
 import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 import it.dc.bridge.rd.ResourceDirectory;
 
 /**
@@ -25,6 +39,12 @@ import it.dc.bridge.rd.ResourceDirectory;
  * first it check the cache for a valid response. If there is not a valid response for that
  * request, then the proxy sends a method call to the CoAP Server.
  * <p>
+ * The requests are sent by a {@link RequestDispatcher}, which follows them
+ * with Californium callbacks instead of waiting for the responses: the
+ * asynchronous methods return a future completed when the response arrives.
+ * The requests to the same node are limited to <tt>NSTART</tt> at a time,
+ * the others wait for their turn in the node queue.
+ * <p>
  * The cache is implemented the <tt>ProxyCacheResource</tt> class and the <tt>CacheResource</tt>
  * interface, provided by the Californium <i>cf-rd</i> package. The class has been re-implemented
  * because of incompleteness.
@@ -37,14 +57,33 @@ public class CoAPProxy implements Runnable {
 	/* the timeout value */
 	private static final int TIMEOUT = NetworkConfig.getStandard().getInt(NetworkConfig.Keys.ACK_TIMEOUT);
 
+	/* the maximum number of refresh-ahead requests in flight */
+	private static final int MAX_REFRESHES = Math.max(1, Integer.getInteger("bridge.cache.refresh.max", 4));
+
 	/* the class instance */
 	private static final CoAPProxy proxy = new CoAPProxy();
 
+	/* the provider of the request tokens */
+	private final TokenProvider tokens = new TokenProvider();
+
+	/* the dispatcher sending the requests */
+	private final RequestDispatcher dispatcher = new RequestDispatcher(TIMEOUT);
+
 	/* the cache */
 	private final ProxyCacheResource cache = new ProxyCacheResource(true);
 
-	/* map containing the observer thread for each observed resource */
-	private HashMap<String, ObserverThread> observers = new HashMap<String, ObserverThread>();
+	/* the manager of the observed resources */
+	private final ObservationManager observations = new ObservationManager();
+
+	/* the shared exchanges of the GET requests in flight, by request identity */
+	private final ConcurrentMap<String, ListenableFuture<Response>> pendingGets =
+			new ConcurrentHashMap<String, ListenableFuture<Response>>();
+
+	/* the number of GET requests that joined an identical request in flight */
+	private final AtomicLong coalescedGets = new AtomicLong();
+
+	/* the number of refresh-ahead requests in flight */
+	private final AtomicInteger refreshes = new AtomicInteger();
 
 	/*
 	 * Since the CoAPProxy is a singleton,
@@ -71,6 +110,9 @@ public class CoAPProxy implements Runnable {
 	 * and checks the cache for a valid response for the specific request.
 	 * If the cache does not have a valid response, the method sends the
 	 * specific request message to the CoAP Server and returns the received response.
+	 * <p>
+	 * The method waits for the response: use {@link #callMethodAsync(String, Request)}
+	 * to avoid blocking the caller.
 	 * 
 	 * @param rdPath the resource path inside the RD
 	 * @param request the request message
@@ -78,133 +120,342 @@ public class CoAPProxy implements Runnable {
 	 */
 	public Response callMethod(final String rdPath, final Request request) {
 
+		try {
+			return callMethodAsync(rdPath, request).get();
+		} catch (InterruptedException e) {
+			LOGGER.severe("Receiving of response interrupted: " + e.getMessage());
+			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
+		} catch (ExecutionException e) {
+			LOGGER.severe("Method call failed: " + e.getCause());
+			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
+		}
+
+	}
+
+	/**
+	 * Obtains the context associated to the specific resource path
+	 * and checks the cache for a valid response for the specific request.
+	 * If the cache does not have a valid response, the method sends the
+	 * specific request message to the CoAP Server, without waiting for the response.
+	 * <p>
+	 * The returned future is completed with the response, which is cached,
+	 * or with a 5.04 (Gateway Timeout) response if the CoAP Server does not
+	 * answer in time. A cached response completes the future immediately.
+	 * <p>
+	 * A GET request identical (same URI, accept option and etags) to a GET request in flight
+	 * is not sent: it waits for the response of the request in flight, which is cached once.
+	 * Cancelling the returned future does not cancel a request shared with other callers.
+	 * <p>
+	 * Within the stale-while-revalidate window of the cache, an expired response
+	 * is returned immediately and a single request refreshes it in the background.
+	 * An expired response with an etag is revalidated: the request is sent
+	 * with the etag, and a 2.03 (Valid) response refreshes the cached response,
+	 * which is returned.
+	 * <p>
+	 * A fresh response read frequently is refreshed in the background before
+	 * it expires (see {@link ProxyCacheResource#claimRefresh(Request)}), with at most
+	 * <tt>bridge.cache.refresh.max</tt> refresh requests in flight.
+	 * 
+	 * @param rdPath the resource path inside the RD
+	 * @param request the request message
+	 * @return the future response message
+	 */
+	public ListenableFuture<Response> callMethodAsync(final String rdPath, final Request request) {
+
 		// take the node context from the RD (the path is unique within the RD)
 		String context = ResourceDirectory.getInstance().getContextFromResource(rdPath);
 
 		// take the resource path within the CoAP Server from the RD
 		String path = ResourceDirectory.getInstance().getResourcePath(rdPath);
 
-		request.setURI(context+path);
+		if (context == null || path == null) {
+			return Futures.immediateFuture(new Response(ResponseCode.NOT_FOUND));
+		}
 
-		// set uri-host and uri-port options
-		OptionSet options = new OptionSet(request.getOptions());
-		options.setUriHost(request.getDestination().getHostAddress());
-		options.setUriPort(request.getDestinationPort());
-		request.setOptions(options);
+		setDestination(request, context, path);
 
-		Response response = null;
+		if (request.getCode() != Code.GET) {
+			return send(request, context, path);
+		}
 
-		if (request.getCode() == Code.GET) {
-			// check the cache for a valid response
-			response = cache.getResponse(request);
-			if (response != null) {
-				LOGGER.info("Cache returned "+response);
-				return response;
+		// check the cache for a valid response
+		Response response = cache.getResponse(request);
+		if (response != null) {
+			if (cache.isStale(response)) {
+				// the stale response is returned while a new one is requested
+				LOGGER.info("CoAP Proxy revalidates the stale response of "+context+" on the resource "+path);
+				refresh(request, context, path);
+			} else if (refreshes.get() < MAX_REFRESHES && cache.claimRefresh(request)) {
+				// the frequently read response is requested again before it expires
+				refreshAhead(request, context, path);
 			}
+			LOGGER.info("Cache returned "+response);
+			return Futures.immediateFuture(response);
 		}
-		
-		byte[] b = new byte[4];
-		new Random().nextBytes(b);
-		request.setToken(b);
 
-		LOGGER.info("CoAP Proxy sends a "+request.getCode()+" method call to "+context+" on the resource "+path);
+		return share(exchange(request, context, path));
 
-		// send request
-		request.send();
+	}
 
-		// wait for response
-		try {
-			response = request.waitForResponse(TIMEOUT);
+	/*
+	 * Requests again the cached response, in the background.
+	 */
+	private ListenableFuture<Response> refresh(Request request, String context, String path) {
+
+		return exchange(copyOf(request, context, path), context, path);
+
+	}
+
+	/*
+	 * Returns a new GET request with the options of the request,
+	 * so that the caller's request is never modified.
+	 */
+	private Request copyOf(Request request, String context, String path) {
+
+		Request ret = new Request(Code.GET);
+		ret.setOptions(new OptionSet(request.getOptions()));
+		setDestination(ret, context, path);
 
-			// timeout
-			if (response == null) {
-				LOGGER.warning("No response received.");
-				return new Response(ResponseCode.GATEWAY_TIMEOUT);
+		return ret;
+
+	}
+
+	/*
+	 * Refreshes the cached response before it expires, unless too many
+	 * refresh requests are in flight.
+	 */
+	private void refreshAhead(Request request, String context, String path) {
+
+		if (refreshes.incrementAndGet() > MAX_REFRESHES) {
+			refreshes.decrementAndGet();
+			return;
+		}
+
+		LOGGER.info("CoAP Proxy refreshes ahead the response of "+context+" on the resource "+path);
+		refresh(request, context, path).addListener(new Runnable() {
+			public void run() {
+				refreshes.decrementAndGet();
 			}
-		} catch (InterruptedException e) {
-			LOGGER.severe("Receiving of response interrupted: " + e.getMessage());
-			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
+		}, MoreExecutors.sameThreadExecutor());
+
+	}
+
+	/*
+	 * Sends the GET request, unless an identical GET request is in flight:
+	 * the identical requests share the same exchange.
+	 */
+	private ListenableFuture<Response> exchange(final Request request, String context, String path) {
+
+		String key = exchangeKey(request);
+		SettableFuture<Response> exchange = SettableFuture.create();
+		ListenableFuture<Response> leader = pendingGets.putIfAbsent(key, exchange);
+		if (leader != null) {
+			LOGGER.info("CoAP Proxy joins the GET method call in flight to "+context+" on the resource "+path);
+			coalescedGets.incrementAndGet();
+			return leader;
 		}
 
-		// set the response timestamp
-		long timestamp = System.nanoTime();
-		response.setTimestamp(timestamp);
+		removeWhenDone(key, exchange);
 
-		request.setResponse(response);
+		// an expired response with an etag is revalidated instead of requested again
+		final Response cached = request.getOptions().getETagCount() == 0 ? cache.getRevalidableResponse(request) : null;
+		if (cached == null) {
+			relay(send(request, context, path), exchange);
+			return exchange;
+		}
 
-		// cache response
-		cache.cacheResponse(request, response);
+		final byte[] etag = cached.getOptions().getETags().get(0);
+		Request revalidation = copyOf(request, context, path);
+		revalidation.getOptions().addETag(etag);
+
+		relay(Futures.transform(send(revalidation, context, path), new Function<Response, Response>() {
+			public Response apply(Response response) {
+
+				// the cached response is still valid, and it has been refreshed
+				if (response.getCode() == ResponseCode.VALID
+						&& response.getOptions().getETagCount() > 0
+						&& Arrays.equals(etag, response.getOptions().getETags().get(0))) {
+					LOGGER.info("Cached response revalidated");
+					Response refreshed = cache.getResponse(request);
+					if (refreshed != null) {
+						return refreshed;
+					}
+
+					// not cached again: the cached response with the max-age of the validation
+					Long maxAge = response.getOptions().getMaxAge();
+					return ProxyCacheResource.copyOf(cached, maxAge != null ? maxAge : OptionNumberRegistry.Defaults.MAX_AGE, response.getTimestamp());
+				}
+
+				return response;
+
+			}
+		}, MoreExecutors.sameThreadExecutor()), exchange);
+
+		return exchange;
+
+	}
+
+	/*
+	 * Returns the key of a GET exchange: the identity of the request in the cache,
+	 * with the etags of the client, since a conditional request can get a 2.03
+	 * (Valid) response that does not answer a plain one.
+	 */
+	private static String exchangeKey(Request request) {
+
+		String key = ProxyCacheResource.getRequestKey(request);
+		if (request.getOptions().getETagCount() == 0) {
+			return key;
+		}
 
-		return response;
+		StringBuilder ret = new StringBuilder(key);
+		for (byte[] etag : request.getOptions().getETags()) {
+			ret.append('#');
+			for (byte b : etag) {
+				ret.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+		}
+
+		return ret.toString();
+
+	}
+
+	/*
+	 * Sends the request and caches the response when it arrives.
+	 */
+	private ListenableFuture<Response> send(final Request request, String context, String path) {
+
+		request.setToken(tokens.acquire());
+
+		LOGGER.info("CoAP Proxy sends a "+request.getCode()+" method call to "+context+" on the resource "+path);
+
+		// send request, the response is cached when it arrives
+		ListenableFuture<Response> sent = dispatcher.send(request, context);
+		releaseToken(sent, request.getToken());
+
+		return Futures.transform(sent, new Function<Response, Response>() {
+			public Response apply(Response response) {
+
+				// rejected by the dispatcher, the CoAP Server has not been reached
+				if (response.getCode() == ResponseCode.SERVICE_UNAVAILABLE && response.getSource() == null) {
+					return response;
+				}
+
+				// set the response timestamp
+				long timestamp = System.nanoTime();
+				response.setTimestamp(timestamp);
+
+				// cache response, or the error (a timeout too)
+				cache.cacheResponse(request, response);
+
+				return response;
+
+			}
+		}, MoreExecutors.sameThreadExecutor());
 
 	}
 
 	/**
 	 * Registers to resource notifications.
 	 * Creates a request with the observe option set to 0 (register)
-	 * and sends it to the CoAP Server with the specific resource.
+	 * and sends it to the CoAP Server with the specific resource,
+	 * without waiting for the response.
+	 * <p>
+	 * The returned future is completed with <tt>OK</tt> if the resource is observed,
+	 * <tt>NOT_IMPLEMENTED</tt> if it is not observable and <tt>TIMEOUT</tt> if the
+	 * CoAP Server does not answer.
 	 * 
 	 * @param rdPath the resource path inside the RD
 	 * @param request the request message
-	 * @return true if the resource is observable, false otherwise
+	 * @return the future registration status
 	 */
-	public Status register(String rdPath, Request request) {
+	public ListenableFuture<Status> registerAsync(String rdPath, Request request) {
 
-		// take the node context from the RD (the path is unique within the RD)
-		String context = ResourceDirectory.getInstance().getContextFromResource(rdPath);
+		return observe(rdPath, request, null);
 
-		// take the resource path within the CoAP Server from the RD
-		String path = ResourceDirectory.getInstance().getResourcePath(rdPath);
+	}
 
-		request.setURI(context+path);
+	/**
+	 * Registers again to the notifications of a resource whose observation
+	 * has gone stale. A new observe request, equal to the previous one,
+	 * is sent to the CoAP Server (whose context is read again from the RD,
+	 * since a rebooted node may have changed it). If the registration succeeds,
+	 * the new request replaces the previous one, which is cancelled.
+	 * 
+	 * @param rdPath the resource path inside the RD
+	 * @param previous the previous observe request
+	 * @return the future registration status
+	 */
+	ListenableFuture<Status> reregister(String rdPath, Request previous) {
 
-		// set uri-host and uri-port options
-		OptionSet options = new OptionSet(request.getOptions());
-		options.setUriHost(request.getDestination().getHostAddress());
-		options.setUriPort(request.getDestinationPort());
-		request.setOptions(options);
-		
-		byte[] b = new byte[4];
-		new Random().nextBytes(b);
-		request.setToken(b);
+		Request request = new Request(Code.GET);
+		request.setOptions(new OptionSet(previous.getOptions()));
 
-		// set the observe option
-		request.setObserve();
-		
-		System.out.println(request.getTokenString());
+		return observe(rdPath, request, previous);
 
-		LOGGER.info("CoAPProxy requests for observe the resource "+path+" from "+context);
-		request.send();
+	}
 
-		Response response = null;
+	/*
+	 * Sends the observe request. If the registration succeeds, the notifications
+	 * are received by the observation manager, replacing the previous request if any.
+	 */
+	private ListenableFuture<Status> observe(final String rdPath, final Request request, final Request previous) {
 
-		// wait for response
-		try {
-			response = request.waitForResponse(TIMEOUT);
+		// take the node context from the RD (the path is unique within the RD)
+		final String context = ResourceDirectory.getInstance().getContextFromResource(rdPath);
 
-			// timeout
-			if (response == null) {
-				LOGGER.warning("No response received.");
-				return Status.TIMEOUT;
-			}
-		} catch (InterruptedException e) {
-			LOGGER.severe("Receiving of response interrupted: " + e.getMessage());
-			return Status.FAIL;
-		}
+		// take the resource path within the CoAP Server from the RD
+		final String path = ResourceDirectory.getInstance().getResourcePath(rdPath);
 
-		// check if the CoAP Server response is success and the resource is observable
-		if (!ResponseCode.isSuccess(response.getCode()) && (response.getOptions().getObserve() == 0)) {
-			LOGGER.info("The resource "+path+" is not observable.");
-			return Status.NOT_IMPLEMENTED;
+		if (context == null || path == null) {
+			return Futures.immediateFuture(Status.BUS_NO_SUCH_OBJECT);
 		}
 
-		ObserverThread observer = new ObserverThread(rdPath, request);
-		observer.start();
-		observers.put(rdPath, observer);
+		setDestination(request, context, path);
+
+		// the token identifies the notifications until the observation is cancelled
+		request.setToken(tokens.acquire());
+
+		// set the observe option
+		request.setObserve();
+
+		LOGGER.info("CoAPProxy requests for observe the resource "+path+" from "+context);
 
-		LOGGER.info("Start receiving notification from "+context+" for the resource "+path);
+		return Futures.transform(dispatcher.send(request, context), new Function<Response, Status>() {
+			public Status apply(Response response) {
+
+				// timeout or rejection
+				if (response.getCode() == ResponseCode.GATEWAY_TIMEOUT
+						|| response.getCode() == ResponseCode.SERVICE_UNAVAILABLE) {
+					request.cancel();
+					tokens.release(request.getToken());
+					return Status.TIMEOUT;
+				}
+
+				// check if the CoAP Server response is success and the resource is observable
+				if (!ResponseCode.isSuccess(response.getCode()) || !response.getOptions().hasObserve()) {
+					LOGGER.info("The resource "+path+" is not observable.");
+					request.cancel();
+					tokens.release(request.getToken());
+					return Status.NOT_IMPLEMENTED;
+				}
+
+				// the registration response is not a notification
+				if (!observations.start(rdPath, request, response, previous)) {
+					// the observation has been cancelled in the meantime
+					request.cancel();
+					tokens.release(request.getToken());
+					return Status.FAIL;
+				}
+				if (previous != null) {
+					tokens.release(previous.getToken());
+				}
+
+				LOGGER.info("Start receiving notification from "+context+" for the resource "+path);
+
+				return Status.OK;
 
-		return Status.OK;
+			}
+		}, MoreExecutors.sameThreadExecutor());
 
 	}
 
@@ -218,66 +469,191 @@ public class CoAPProxy implements Runnable {
 	 * First, the <tt>CoAPProxy</tt> explicitly deregisters by issuing a GET
 	 * request that includes an Observe Option with the value set to 1 (deregister).
 	 * Then, even if problems occur, it stops receiving notification
-	 * killing the <tt>ObserverThread</tt>.
+	 * through the {@link ObservationManager}.
+	 * <p>
+	 * The method does not wait for the CoAP Server response.
 	 * 
 	 * @param rdPath the resource path within the RD
+	 * @return the future completed when the observation is cancelled
 	 */
-	public void cancel(String rdPath) {
+	public ListenableFuture<?> cancelAsync(final String rdPath) {
 
 		Request request = new Request(Code.GET);
 
 		// take the node context from the RD (the path is unique within the RD)
-		String context = ResourceDirectory.getInstance().getContextFromResource(rdPath);
+		final String context = ResourceDirectory.getInstance().getContextFromResource(rdPath);
 
 		// take the resource path within the CoAP Server from the RD
-		String path = ResourceDirectory.getInstance().getResourcePath(rdPath);
+		final String path = ResourceDirectory.getInstance().getResourcePath(rdPath);
 
-		request.setURI(context+path);
+		ListenableFuture<Response> response;
+		if (context != null && path != null) {
+			setDestination(request, context, path);
 
-		// set uri-host and uri-port options
-		OptionSet options = new OptionSet(request.getOptions());
-		options.setUriHost(request.getDestination().getHostAddress());
-		options.setUriPort(request.getDestinationPort());
-		request.setOptions(options);
+			// set the observe option to 1
+			request.setObserveCancel();
+			request.setToken(tokens.acquire());
 
-		// set the observe option to 1
-		request.setObserveCancel();
+			LOGGER.info("CoAPProxy requests for stop observing the resource "+path+" from "+context);
+			response = dispatcher.send(request, context);
+			releaseToken(response, request.getToken());
+		} else {
+			response = Futures.immediateFuture(null);
+		}
 
-		LOGGER.info("CoAPProxy requests for stop observing the resource "+path+" from "+context);
-		request.send();
+		return Futures.transform(response, new Function<Response, Response>() {
+			public Response apply(Response response) {
 
-		Response response = null;
+				Request observed = observations.stop(rdPath);
+				if (observed != null) {
+					tokens.release(observed.getToken());
+				}
 
-		// wait for response
-		try {
-			response = request.waitForResponse(TIMEOUT);
+				LOGGER.info("Stop receiving notification from "+context+" for the resource "+path);
+
+				return response;
 
-			// timeout
-			if (response == null) {
-				LOGGER.warning("No response received.");
 			}
-		} catch (InterruptedException e) {
-			LOGGER.severe("Receiving of response interrupted: " + e.getMessage());
-		}
+		}, MoreExecutors.sameThreadExecutor());
+
+	}
+
+	/**
+	 * Returns, for each CoAP node, the number of outstanding and queued
+	 * requests and the time the requests waited before being sent.
+	 * 
+	 * @return a snapshot of the statistics for each node
+	 */
+	public List<NodeStatistics> getNodeStatistics() {
+
+		return dispatcher.getStatistics();
+
+	}
+
+	/**
+	 * Returns the bytes used in the cache by each CoAP node.
+	 * 
+	 * @return a snapshot of the cache usage, by node address and port
+	 */
+	public Map<String, Long> getCacheUsage() {
+
+		return cache.getNodeUsage();
+
+	}
+
+	/**
+	 * Returns the number of GET requests answered by joining an identical
+	 * request in flight, instead of sending a new one.
+	 * 
+	 * @return the number of coalesced requests
+	 */
+	public long getCoalescedGets() {
+
+		return coalescedGets.get();
 
-		observers.get(rdPath).stopRunning();
-		observers.remove(rdPath);
+	}
+
+	/**
+	 * Returns the number of observations registered again because
+	 * they went stale (e.g., after a node reboot).
+	 * 
+	 * @return the number of re-registrations
+	 */
+	public long getReregistrations() {
 
-		LOGGER.info("Stop receiving notification from "+context+" for the resource "+path);
+		return observations.getReregistrations();
 
 	}
 
 	/**
 	 * Inserts the specific (request, response) pair into the cache.
+	 * The response is not set on the request, so the request observers
+	 * are not called again.
 	 * 
 	 * @param request the request message
 	 * @param response the response message
 	 */
 	public void cacheResponse(Request request, Response response) {
 
-		request.setResponse(response);
 		cache.cacheResponse(request, response);
-		request.setResponse(null);
+
+	}
+
+	/*
+	 * Sets the request URI and the uri-host and uri-port options.
+	 */
+	private void setDestination(Request request, String context, String path) {
+
+		request.setURI(context+path);
+
+		// set uri-host and uri-port options
+		OptionSet options = new OptionSet(request.getOptions());
+		options.setUriHost(request.getDestination().getHostAddress());
+		options.setUriPort(request.getDestinationPort());
+		request.setOptions(options);
+
+	}
+
+	/*
+	 * Removes the shared exchange from the pending GET requests when it is completed,
+	 * so that the next requests are answered by the cache or by a new exchange.
+	 */
+	private void removeWhenDone(final String key, final ListenableFuture<Response> exchange) {
+
+		exchange.addListener(new Runnable() {
+			public void run() {
+				pendingGets.remove(key, exchange);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+
+	}
+
+	/*
+	 * Returns a future completed with the result of the shared exchange.
+	 * A caller cancelling its future does not cancel the exchange,
+	 * which may be shared with other callers.
+	 */
+	private static ListenableFuture<Response> share(ListenableFuture<Response> exchange) {
+
+		SettableFuture<Response> ret = SettableFuture.create();
+		relay(exchange, ret);
+
+		return ret;
+
+	}
+
+	/*
+	 * Completes the target future with the result of the source future.
+	 */
+	private static void relay(final ListenableFuture<Response> source, final SettableFuture<Response> target) {
+
+		source.addListener(new Runnable() {
+			public void run() {
+				try {
+					target.set(source.get());
+				} catch (ExecutionException e) {
+					target.setException(e.getCause());
+				} catch (CancellationException e) {
+					target.cancel(false);
+				} catch (InterruptedException e) {
+					// the source is done, get() does not wait
+					target.setException(e);
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
+
+	}
+
+	/*
+	 * Releases the request token when the response future is completed.
+	 */
+	private void releaseToken(ListenableFuture<Response> future, final byte[] token) {
+
+		future.addListener(new Runnable() {
+			public void run() {
+				tokens.release(token);
+			}
+		}, MoreExecutors.sameThreadExecutor());
 
 	}
 
@@ -0,0 +1,717 @@
+package it.dc.bridge.proxy;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * The <tt>ConcurrentCache</tt> is the bounded map holding the responses
+ * of the {@link ProxyCacheResource}.
+ * <p>
+ * The lookups do not take locks: they read a concurrent map and only mark
+ * the entry as referenced. The writes are serialized by the cache lock.
+ * <p>
+ * Each entry has a weight (e.g., its size in bytes) and belongs to a group
+ * (e.g., the node it comes from): the cache bounds the total weight, and
+ * optionally the weight of each group, so that a single group cannot
+ * push the others out.
+ * <p>
+ * When the cache (or the group) is full, a victim is selected with the CLOCK
+ * algorithm (the entries referenced since the last pass get a second chance).
+ * The new entry replaces the victim only if its key has been looked up more
+ * often recently (TinyLFU admission): the frequencies are estimated by a
+ * count-min sketch of the lookups, halved periodically so that they follow
+ * the recent traffic. In this way a scan of one-off keys does not evict
+ * the popular ones. An entry heavier than the bound is never admitted.
+ * <p>
+ * The entries expire a fixed time after their last write. The values leaving
+ * the cache, replaced or removed, are reported to the removal listener.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+class ConcurrentCache<K, V> {
+
+	/* the entries, by key */
+	private final ConcurrentMap<K, Node<K, V>> map = new ConcurrentHashMap<K, Node<K, V>>();
+
+	/* the CLOCK queue of the entries, guarded by this (the removed nodes are dropped lazily) */
+	private final Queue<Node<K, V>> clock = new ArrayDeque<Node<K, V>>();
+
+	/* the maximum total weight */
+	private final long maximumWeight;
+
+	/* the maximum weight of each group (0 for no limit) */
+	private final long groupQuota;
+
+	/* the total weight of the entries, guarded by this */
+	private long totalWeight;
+
+	/* the weight of the entries of each group, guarded by this */
+	private final Map<String, long[]> groupWeights = new HashMap<String, long[]>();
+
+	/* the lifetime of an entry after its last write, in nanoseconds */
+	private final long expireAfterWrite;
+
+	/* the frequencies of the looked up keys */
+	private final FrequencySketch sketch;
+
+	/* the number of lookups returning a value */
+	private final StripedCounter hits = new StripedCounter();
+
+	/* the number of lookups without value */
+	private final StripedCounter misses = new StripedCounter();
+
+	/* the number of entries evicted to make room for new ones */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/* the listener of the values leaving the cache, or null */
+	private final RemovalListener<K, V> listener;
+
+	/* the number of entries not admitted, because less frequent than the victim or too heavy */
+	private final AtomicLong rejections = new AtomicLong();
+
+	/**
+	 * Instantiates a new cache.
+	 *
+	 * @param maximumWeight the maximum total weight
+	 * @param groupQuota the maximum weight of each group, 0 for no limit
+	 * @param averageWeight the expected average weight of an entry, which sizes the frequency sketch
+	 * @param expireAfterWrite the lifetime of an entry after its last write
+	 * @param unit the time unit of the lifetime
+	 * @param listener the listener of the values leaving the cache, or null
+	 */
+	ConcurrentCache(long maximumWeight, long groupQuota, int averageWeight, long expireAfterWrite, TimeUnit unit,
+			RemovalListener<K, V> listener) {
+
+		this.maximumWeight = Math.max(1, maximumWeight);
+		this.groupQuota = Math.max(0, groupQuota);
+		this.expireAfterWrite = unit.toNanos(expireAfterWrite);
+		this.sketch = new FrequencySketch((int) Math.min(1 << 16, this.maximumWeight / Math.max(1, averageWeight)));
+		this.listener = listener;
+
+	}
+
+	/**
+	 * Returns the value of the key, recording the lookup
+	 * in the statistics and in the key frequency.
+	 *
+	 * @param key the key
+	 * @return the value, or null if not present or expired
+	 */
+	V get(K key) {
+
+		sketch.increment(key.hashCode());
+
+		Node<K, V> node = map.get(key);
+		if (node == null || isExpired(node, System.nanoTime())) {
+			misses.increment();
+			return null;
+		}
+
+		// a write only when the bit changes, the hot entries are not written
+		if (!node.referenced) {
+			node.referenced = true;
+		}
+		hits.increment();
+
+		return node.value;
+
+	}
+
+	/**
+	 * Returns the value of the key, without recording the lookup.
+	 *
+	 * @param key the key
+	 * @return the value, or null if not present or expired
+	 */
+	V peek(K key) {
+
+		Node<K, V> node = map.get(key);
+		if (node == null || isExpired(node, System.nanoTime())) {
+			return null;
+		}
+
+		return node.value;
+
+	}
+
+	/**
+	 * Stores the value of the key. A present key is updated, while a new
+	 * key is admitted only if there is room for it or the key is more
+	 * frequent than the entries selected for eviction. A refused value
+	 * leaves the present entry of the key, if any, unchanged.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param group the group of the entry
+	 * @param weight the weight of the entry
+	 * @return false if the value has not been stored
+	 */
+	synchronized boolean put(K key, V value, String group, int weight) {
+
+		long now = System.nanoTime();
+
+		Node<K, V> node = map.get(key);
+		if (weight > maximumWeight || (groupQuota > 0 && weight > groupQuota)) {
+			rejections.incrementAndGet();
+			return false;
+		}
+
+		if (node != null && node.group.equals(group)) {
+			// the updated entry makes room for itself, without admission
+			if (!makeRoom(node, node, weight, now)) {
+				rejections.incrementAndGet();
+				return false;
+			}
+			V previous = node.value;
+			addWeight(group, weight - node.weight);
+			node.value = value;
+			node.weight = weight;
+			node.writeTime = now;
+			if (listener != null && previous != value) {
+				listener.onRemoval(key, previous, value);
+			}
+			return true;
+		}
+
+		// an entry moving to another group is replaced only if the new one is admitted
+		Node<K, V> replaced = node;
+		node = new Node<K, V>(key, value, group, weight, now);
+		if (!makeRoom(node, replaced, weight, now)) {
+			rejections.incrementAndGet();
+			return false;
+		}
+		if (replaced != null) {
+			unlink(replaced, value);
+		}
+
+		if (clock.size() >= 2 * map.size() + 16) {
+			purge();
+		}
+
+		map.put(key, node);
+		clock.offer(node);
+		addWeight(group, weight);
+
+		return true;
+
+	}
+
+	/**
+	 * Removes the entry of the key.
+	 *
+	 * @param key the key
+	 */
+	synchronized void remove(K key) {
+
+		Node<K, V> node = map.get(key);
+		if (node != null) {
+			unlink(node);
+		}
+
+	}
+
+	/**
+	 * Removes the entry of the key, if it has the specified value.
+	 *
+	 * @param key the key
+	 * @param value the expected value
+	 * @return true if the entry has been removed
+	 */
+	synchronized boolean remove(K key, V value) {
+
+		Node<K, V> node = map.get(key);
+		if (node == null || node.value != value) {
+			return false;
+		}
+		unlink(node);
+
+		return true;
+
+	}
+
+	/**
+	 * Removes all the entries.
+	 */
+	synchronized void clear() {
+
+		for (Node<K, V> node : clock) {
+			if (!node.removed) {
+				node.removed = true;
+				if (listener != null) {
+					listener.onRemoval(node.key, node.value, null);
+				}
+			}
+		}
+		clock.clear();
+		map.clear();
+		groupWeights.clear();
+		totalWeight = 0;
+
+	}
+
+	/**
+	 * Returns a copy of the entries not expired.
+	 *
+	 * @return the entries
+	 */
+	Map<K, V> snapshot() {
+
+		long now = System.nanoTime();
+		Map<K, V> ret = new LinkedHashMap<K, V>();
+		for (Node<K, V> node : map.values()) {
+			if (!isExpired(node, now)) {
+				ret.put(node.key, node.value);
+			}
+		}
+
+		return ret;
+
+	}
+
+	/**
+	 * Returns the number of entries, including the expired ones not removed yet.
+	 *
+	 * @return the number of entries
+	 */
+	int size() {
+
+		return map.size();
+
+	}
+
+	/**
+	 * Returns the cache statistics.
+	 *
+	 * @return a snapshot of the statistics
+	 */
+	CacheStats stats() {
+
+		return new CacheStats(hits.sum(), misses.sum(), 0, 0, 0, evictions.get());
+
+	}
+
+	/**
+	 * Returns the total weight of the entries.
+	 *
+	 * @return the total weight
+	 */
+	synchronized long getWeight() {
+
+		return totalWeight;
+
+	}
+
+	/**
+	 * Returns the maximum total weight.
+	 *
+	 * @return the maximum weight
+	 */
+	long getMaximumWeight() {
+
+		return maximumWeight;
+
+	}
+
+	/**
+	 * Returns the weight of the entries of each group.
+	 *
+	 * @return a snapshot of the group weights
+	 */
+	synchronized Map<String, Long> getGroupWeights() {
+
+		Map<String, Long> ret = new HashMap<String, Long>(groupWeights.size());
+		for (Map.Entry<String, long[]> group : groupWeights.entrySet()) {
+			ret.put(group.getKey(), group.getValue()[0]);
+		}
+
+		return ret;
+
+	}
+
+	/**
+	 * Returns the number of entries not admitted in the cache.
+	 *
+	 * @return the number of rejected entries
+	 */
+	long getRejections() {
+
+		return rejections.get();
+
+	}
+
+	/*
+	 * Evicts entries until the candidate, adding the specified weight, fits
+	 * within the cache and its group quota. A victim more frequent than the
+	 * candidate stops the eviction, unless the candidate is already in the
+	 * cache, i.e. it replaces itself. The entry replaced by the candidate, if
+	 * any, is not evicted and its weight is not counted in the total and in
+	 * its group. Called holding the lock.
+	 */
+	private boolean makeRoom(Node<K, V> candidate, Node<K, V> replaced, int weight, long now) {
+
+		long released = replaced == null ? 0 : replaced.weight;
+		long groupReleased = replaced != null && replaced.group.equals(candidate.group) ? released : 0;
+
+		boolean resident = candidate == replaced;
+
+		while (true) {
+			String group;
+			if (groupQuota > 0 && groupWeight(candidate.group) - groupReleased + weight > groupQuota) {
+				group = candidate.group;
+			} else if (totalWeight - released + weight > maximumWeight) {
+				group = null;
+			} else {
+				return true;
+			}
+
+			Node<K, V> victim = selectVictim(group, candidate, replaced, now);
+			if (victim == null) {
+				return false;
+			}
+			// an expired victim is always replaced
+			if (!resident && !isExpired(victim, now)
+					&& sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+				return false;
+			}
+			clock.poll();
+			unlink(victim);
+			evictions.incrementAndGet();
+		}
+
+	}
+
+	/*
+	 * Selects the entry to evict, among the entries of the group if not null,
+	 * leaving it at the head of the CLOCK queue. The referenced entries are
+	 * cleared and moved to the tail, so each entry is passed at most twice.
+	 * The candidate and the entry it replaces are skipped. Called holding the lock.
+	 */
+	private Node<K, V> selectVictim(String group, Node<K, V> candidate, Node<K, V> replaced, long now) {
+
+		for (int i = 2 * clock.size(); i > 0; i--) {
+			Node<K, V> node = clock.peek();
+			if (node == null) {
+				return null;
+			}
+			if (node.removed) {
+				clock.poll();
+				continue;
+			}
+			if (node == candidate || node == replaced || (group != null && !group.equals(node.group))) {
+				clock.offer(clock.poll());
+				continue;
+			}
+			if (node.referenced && !isExpired(node, now)) {
+				node.referenced = false;
+				clock.offer(clock.poll());
+				continue;
+			}
+			return node;
+		}
+
+		return null;
+
+	}
+
+	/*
+	 * Returns the weight of the group. Called holding the lock.
+	 */
+	private long groupWeight(String group) {
+
+		long[] weight = groupWeights.get(group);
+
+		return weight == null ? 0 : weight[0];
+
+	}
+
+	/*
+	 * Adds a weight (possibly negative) to the group and to the total.
+	 * Called holding the lock.
+	 */
+	private void addWeight(String group, long weight) {
+
+		totalWeight += weight;
+
+		long[] groupWeight = groupWeights.get(group);
+		if (groupWeight == null) {
+			groupWeight = new long[1];
+			groupWeights.put(group, groupWeight);
+		}
+		groupWeight[0] += weight;
+		if (groupWeight[0] <= 0) {
+			groupWeights.remove(group);
+		}
+
+	}
+
+	/*
+	 * Drops the removed nodes from the CLOCK queue. Called holding the lock.
+	 */
+	private void purge() {
+
+		Iterator<Node<K, V>> iterator = clock.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().removed) {
+				iterator.remove();
+			}
+		}
+
+	}
+
+	/*
+	 * Removes the node from the map. Called holding the lock.
+	 */
+	private void unlink(Node<K, V> node) {
+
+		unlink(node, null);
+
+	}
+
+	/*
+	 * Removes the node from the map, notifying the value replacing it, if any.
+	 * Called holding the lock.
+	 */
+	private void unlink(Node<K, V> node, V replacement) {
+
+		if (!node.removed) {
+			node.removed = true;
+			map.remove(node.key, node);
+			addWeight(node.group, -node.weight);
+			if (listener != null) {
+				listener.onRemoval(node.key, node.value, replacement);
+			}
+		}
+
+	}
+
+	/*
+	 * Checks if the entry has passed its lifetime.
+	 */
+	private boolean isExpired(Node<K, V> node, long now) {
+
+		return now - node.writeTime > expireAfterWrite;
+
+	}
+
+	/**
+	 * The listener of the values leaving the cache.
+	 *
+	 * @param <K> the key type
+	 * @param <V> the value type
+	 */
+	interface RemovalListener<K, V> {
+
+		/**
+		 * Called, holding the cache lock, when a value is replaced or removed
+		 * (because invalidated, evicted or not admitted anymore).
+		 *
+		 * @param key the key
+		 * @param value the value leaving the cache
+		 * @param replacement the new value of the key, or null if the entry has been removed
+		 */
+		void onRemoval(K key, V value, V replacement);
+
+	}
+
+	/**
+	 * An entry of the cache.
+	 */
+	private static final class Node<K, V> {
+
+		/* the key */
+		private final K key;
+
+		/* the value */
+		private volatile V value;
+
+		/* the group of the entry */
+		private final String group;
+
+		/* the weight of the entry, guarded by the cache */
+		private int weight;
+
+		/* the time of the last write, as returned by System.nanoTime() */
+		private volatile long writeTime;
+
+		/* true if the entry has been looked up since the last CLOCK pass */
+		private volatile boolean referenced;
+
+		/* true if the entry has been removed from the map */
+		private volatile boolean removed;
+
+		Node(K key, V value, String group, int weight, long writeTime) {
+			this.key = key;
+			this.value = value;
+			this.group = group;
+			this.weight = weight;
+			this.writeTime = writeTime;
+		}
+
+	}
+
+	/**
+	 * A count-min sketch estimating the recent frequency of the keys,
+	 * with 4-bit counters (up to 15) updated without locks. When the
+	 * additions reach the sample size, all the counters are halved.
+	 */
+	private static final class FrequencySketch {
+
+		/* the seeds of the hash functions, one for each row */
+		private static final int[] SEEDS = { 0x9E3779B1, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+		/* the maximum value of a counter */
+		private static final int MAX_COUNT = 15;
+
+		/* the counters, SEEDS.length rows of width counters */
+		private final AtomicIntegerArray table;
+
+		/* the number of counters in a row (a power of two) */
+		private final int width;
+
+		/* the shift taking the index from the hash */
+		private final int shift;
+
+		/* the number of additions after which the counters are halved */
+		private final int sampleSize;
+
+		/* the additions since the last halving */
+		private final AtomicInteger additions = new AtomicInteger();
+
+		FrequencySketch(int maximumSize) {
+
+			int size = Math.max(16, maximumSize);
+			width = Integer.highestOneBit(size - 1) << 1;
+			shift = 32 - Integer.numberOfTrailingZeros(width);
+			sampleSize = 10 * width;
+			table = new AtomicIntegerArray(SEEDS.length * width);
+
+		}
+
+		/**
+		 * Records an occurrence of the key. The saturated counters are not
+		 * written, so the popular keys do not contend on the sketch.
+		 *
+		 * @param hash the key hash code
+		 */
+		void increment(int hash) {
+
+			boolean added = false;
+			for (int i = 0; i < SEEDS.length; i++) {
+				int index = indexOf(hash, i);
+				int count;
+				while ((count = table.get(index)) < MAX_COUNT) {
+					if (table.compareAndSet(index, count, count + 1)) {
+						added = true;
+						break;
+					}
+				}
+			}
+
+			if (added && additions.incrementAndGet() == sampleSize) {
+				reset();
+			}
+
+		}
+
+		/**
+		 * Returns the estimated frequency of the key.
+		 *
+		 * @param hash the key hash code
+		 * @return the estimated frequency
+		 */
+		int frequency(int hash) {
+
+			int ret = MAX_COUNT;
+			for (int i = 0; i < SEEDS.length; i++) {
+				ret = Math.min(ret, table.get(indexOf(hash, i)));
+			}
+
+			return ret;
+
+		}
+
+		/*
+		 * Halves all the counters, so the old occurrences fade.
+		 */
+		private void reset() {
+
+			for (int i = 0; i < table.length(); i++) {
+				int count;
+				do {
+					count = table.get(i);
+				} while (count > 0 && !table.compareAndSet(i, count, count >>> 1));
+			}
+			additions.set(sampleSize / 2);
+
+		}
+
+		/*
+		 * Returns the index of the key counter in the specified row.
+		 */
+		private int indexOf(int hash, int row) {
+
+			int h = (hash ^ (hash >>> 16)) * SEEDS[row];
+
+			return row * width + (h >>> shift);
+
+		}
+
+	}
+
+	/**
+	 * A counter spread over several cells, so that the threads
+	 * incrementing it do not write the same cache line.
+	 */
+	private static final class StripedCounter {
+
+		/* the number of cells (a power of two) */
+		private static final int STRIPES = 16;
+
+		/* the distance between the cells, a cache line of longs */
+		private static final int PADDING = 8;
+
+		/* the cells */
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+		/**
+		 * Increments the counter.
+		 */
+		void increment() {
+
+			cells.incrementAndGet((int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING);
+
+		}
+
+		/**
+		 * Returns the counter value.
+		 *
+		 * @return the sum of the cells
+		 */
+		long sum() {
+
+			long ret = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				ret += cells.get(i * PADDING);
+			}
+
+			return ret;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,143 @@
+package it.dc.bridge.proxy;
+
+/**
+ * A snapshot of the requests the {@link CoAPProxy} sends to a CoAP node:
+ * how many are outstanding, how many are queued waiting for the node and
+ * how long the queued requests waited before being sent.
+ */
+public class NodeStatistics {
+
+	/* the node context */
+	private final String context;
+
+	/* the number of requests sent and not completed yet */
+	private final int outstanding;
+
+	/* the number of requests waiting to be sent */
+	private final int queueDepth;
+
+	/* the number of requests sent */
+	private final long sent;
+
+	/* the number of requests sent after waiting in the queue */
+	private final long queued;
+
+	/* the total time (in nanoseconds) spent by the requests in the queue */
+	private final long totalWait;
+
+	/* the longest time (in nanoseconds) spent by a request in the queue */
+	private final long maxWait;
+
+	/**
+	 * Instantiates a new node statistics snapshot.
+	 *
+	 * @param context the node context
+	 * @param outstanding the number of outstanding requests
+	 * @param queueDepth the number of queued requests
+	 * @param sent the number of sent requests
+	 * @param queued the number of requests sent after waiting in the queue
+	 * @param totalWait the total waiting time in nanoseconds
+	 * @param maxWait the longest waiting time in nanoseconds
+	 */
+	NodeStatistics(String context, int outstanding, int queueDepth, long sent, long queued, long totalWait, long maxWait) {
+
+		this.context = context;
+		this.outstanding = outstanding;
+		this.queueDepth = queueDepth;
+		this.sent = sent;
+		this.queued = queued;
+		this.totalWait = totalWait;
+		this.maxWait = maxWait;
+
+	}
+
+	/**
+	 * Returns the node context.
+	 *
+	 * @return the node context
+	 */
+	public String getContext() {
+
+		return context;
+
+	}
+
+	/**
+	 * Returns the number of requests sent to the node and not completed yet.
+	 *
+	 * @return the number of outstanding requests
+	 */
+	public int getOutstanding() {
+
+		return outstanding;
+
+	}
+
+	/**
+	 * Returns the number of requests waiting to be sent to the node.
+	 *
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+
+		return queueDepth;
+
+	}
+
+	/**
+	 * Returns the number of requests sent to the node.
+	 *
+	 * @return the number of sent requests
+	 */
+	public long getSent() {
+
+		return sent;
+
+	}
+
+	/**
+	 * Returns the average time a request waited in the queue
+	 * before being sent, considering all the sent requests.
+	 *
+	 * @return the average waiting time in milliseconds
+	 */
+	public double getAverageWait() {
+
+		return sent == 0 ? 0 : totalWait / 1e6 / sent;
+
+	}
+
+	/**
+	 * Returns the longest time a request waited in the queue.
+	 *
+	 * @return the longest waiting time in milliseconds
+	 */
+	public double getMaxWait() {
+
+		return maxWait / 1e6;
+
+	}
+
+	/**
+	 * Returns the number of requests that waited in the queue before being sent.
+	 *
+	 * @return the number of queued requests
+	 */
+	public long getQueued() {
+
+		return queued;
+
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+
+		return String.format("%s: outstanding=%d queued=%d sent=%d avgWait=%.1fms maxWait=%.1fms",
+				context, outstanding, queueDepth, sent, getAverageWait(), getMaxWait());
+
+	}
+
+}
@@ -0,0 +1,455 @@
+package it.dc.bridge.proxy;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.alljoyn.bus.Status;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import it.dc.bridge.om.AJObjectManagerApp;
+
+/**
+ * The <tt>ObservationManager</tt> receives the notifications of all the
+ * resources observed by the {@link CoAPProxy}.
+ * <p>
+ * Each observe request is followed by a Californium <tt>MessageObserver</tt>,
+ * called when a notification arrives: no thread waits for the notifications.
+ * The notification is handed off to a small pool of workers, which caches it
+ * and sends it to the <tt>AJObjectManagerApp</tt>. The notifications of the
+ * same resource are handled in order, while different resources are handled
+ * in parallel. The number of threads does not depend on the number of
+ * observed resources.
+ * <p>
+ * The manager also checks the health of the observations. An observation is
+ * stale when no notification arrives within the Max-Age of the last one (plus
+ * a grace period), or when the node cancels it (e.g., rejecting a notification
+ * after a reboot). A stale observation is registered again after a randomized
+ * exponential backoff; the re-registrations are also spaced out at a maximum
+ * rate, so that many observations going stale at once (e.g., when a fleet of
+ * nodes is power-cycled) do not cause a storm of registrations.
+ */
+class ObservationManager {
+
+	/* the logger */
+	private static final Logger LOGGER = Logger.getGlobal();
+
+	/* the number of threads handling the notifications */
+	private static final int WORKERS = Integer.getInteger("bridge.observe.workers", 4);
+
+	/* the period (in milliseconds) of the health check */
+	private static final long CHECK_PERIOD = Long.getLong("bridge.observe.check", 5000);
+
+	/* the time (in milliseconds) a notification may arrive after the Max-Age expiration */
+	private static final long GRACE = Long.getLong("bridge.observe.grace", 5000);
+
+	/* the initial re-registration backoff (in milliseconds) */
+	private static final long BACKOFF = Long.getLong("bridge.observe.backoff", 1000);
+
+	/* the maximum re-registration backoff (in milliseconds) */
+	private static final long MAX_BACKOFF = Long.getLong("bridge.observe.maxbackoff", 60000);
+
+	/* the maximum number of re-registrations per second */
+	private static final int REREGISTRATION_RATE = Math.max(1, Integer.getInteger("bridge.observe.rate", 10));
+
+	/* the workers handling the notifications */
+	private final ExecutorService workers = Executors.newFixedThreadPool(WORKERS,
+			new ThreadFactoryBuilder().setNameFormat("coap-notify-%d").setDaemon(true).build());
+
+	/* the timer checking the observations and scheduling the re-registrations */
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("coap-observe-health").setDaemon(true).build());
+
+	/* the random generator of the backoff jitter, guarded by this */
+	private final Random random = new Random();
+
+	/* map containing the <resource path, observer> pair for each observed resource */
+	private final Map<String, Observer> observers = new ConcurrentHashMap<String, Observer>();
+
+	/* the earliest time (System.nanoTime() based) of the next re-registration, guarded by this */
+	private long nextSlot = System.nanoTime();
+
+	/* the number of re-registrations sent */
+	private final AtomicLong reregistrations = new AtomicLong();
+
+	/**
+	 * Instantiates a new observation manager and starts the health check.
+	 */
+	ObservationManager() {
+
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				check();
+			}
+		}, CHECK_PERIOD, CHECK_PERIOD, TimeUnit.MILLISECONDS);
+
+	}
+
+	/**
+	 * Starts receiving the notifications of a resource.
+	 * The registration response has already been received and is not notified.
+	 * <p>
+	 * If a previous request is specified (re-registration), the new request
+	 * replaces it only if the resource is still observed with that request.
+	 *
+	 * @param rdPath the resource path inside the RD
+	 * @param request the observe request
+	 * @param registration the registration response
+	 * @param previous the observe request to replace, or null
+	 * @return false if the observation has been stopped in the meantime
+	 */
+	boolean start(String rdPath, Request request, Response registration, Request previous) {
+
+		Observer observer = new Observer(rdPath, request);
+		observer.update(registration);
+
+		Observer replaced;
+		if (previous == null) {
+			replaced = observers.put(rdPath, observer);
+		} else {
+			replaced = observers.get(rdPath);
+			if (replaced == null || replaced.request != previous || !observers.replace(rdPath, replaced, observer)) {
+				return false;
+			}
+		}
+		if (replaced != null) {
+			replaced.stop();
+		}
+		request.addMessageObserver(observer);
+
+		return true;
+
+	}
+
+	/**
+	 * Stops receiving the notifications of a resource and
+	 * cancels its observe request.
+	 *
+	 * @param rdPath the resource path inside the RD
+	 * @return the observe request, or null if the resource was not observed
+	 */
+	Request stop(String rdPath) {
+
+		Observer observer = observers.remove(rdPath);
+		if (observer == null) {
+			return null;
+		}
+		observer.stop();
+
+		return observer.request;
+
+	}
+
+	/**
+	 * Returns the number of observed resources.
+	 *
+	 * @return the number of observed resources
+	 */
+	int size() {
+
+		return observers.size();
+
+	}
+
+	/**
+	 * Returns the number of re-registrations sent for stale observations.
+	 *
+	 * @return the number of re-registrations
+	 */
+	long getReregistrations() {
+
+		return reregistrations.get();
+
+	}
+
+	/*
+	 * Looks for the stale observations.
+	 */
+	private void check() {
+
+		long now = System.nanoTime();
+		for (Observer observer : observers.values()) {
+			if (observer.isStale(now)) {
+				LOGGER.warning("No notification from "+observer.rdPath+" within its Max-Age");
+				observer.reregisterLater();
+			}
+		}
+
+	}
+
+	/*
+	 * Returns the delay (in nanoseconds) of the next re-registration attempt:
+	 * a random backoff, increasing with the attempts, postponed to the next
+	 * free re-registration slot.
+	 */
+	private synchronized long nextDelay(int attempt) {
+
+		long backoff = Math.min(MAX_BACKOFF, BACKOFF << Math.min(attempt, 20));
+		long delay = TimeUnit.MILLISECONDS.toNanos(backoff / 2 + (long) (random.nextDouble() * backoff / 2));
+
+		long now = System.nanoTime();
+		long slot = Math.max(now + delay, nextSlot);
+		nextSlot = slot + TimeUnit.SECONDS.toNanos(1) / REREGISTRATION_RATE;
+
+		return slot - now;
+
+	}
+
+	/**
+	 * The observer of a resource. It queues the notifications and
+	 * hands them off to the workers.
+	 */
+	private class Observer extends MessageObserverAdapter implements Runnable {
+
+		/* the resource path inside the RD */
+		private final String rdPath;
+
+		/* the observe request */
+		private final Request request;
+
+		/* the notifications waiting to be handled */
+		private final Queue<Response> queue = new ConcurrentLinkedQueue<Response>();
+
+		/* true if a worker is handling the notifications */
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		/* true if a re-registration is scheduled or pending */
+		private final AtomicBoolean reregistering = new AtomicBoolean(false);
+
+		/* the number of failed re-registrations */
+		private volatile int attempts;
+
+		/* false when the observation has been cancelled */
+		private volatile boolean active = true;
+
+		/* the time of the last notification, as returned by System.nanoTime() */
+		private volatile long lastNotification;
+
+		/* the Max-Age (in nanoseconds) of the last notification */
+		private volatile long maxAge;
+
+		/**
+		 * Instantiates a new observer.
+		 *
+		 * @param rdPath the resource path inside the RD
+		 * @param request the observe request
+		 */
+		Observer(String rdPath, Request request) {
+
+			this.rdPath = rdPath;
+			this.request = request;
+
+		}
+
+		/**
+		 * Ignores the next notifications and cancels the observe request.
+		 */
+		void stop() {
+
+			active = false;
+			queue.clear();
+			request.cancel();
+
+		}
+
+		/**
+		 * Records the arrival and the Max-Age of a notification.
+		 *
+		 * @param response the notification
+		 */
+		void update(Response response) {
+
+			Long value = response.getOptions().getMaxAge();
+			long seconds = value != null ? value.longValue() : OptionNumberRegistry.Defaults.MAX_AGE;
+			maxAge = TimeUnit.SECONDS.toNanos(seconds);
+			lastNotification = System.nanoTime();
+
+		}
+
+		/**
+		 * Checks if the notifications stopped arriving.
+		 *
+		 * @param now the current time, as returned by System.nanoTime()
+		 * @return true if the observation is stale and not being re-registered
+		 */
+		boolean isStale(long now) {
+
+			return active && !reregistering.get()
+					&& now - lastNotification > maxAge + TimeUnit.MILLISECONDS.toNanos(GRACE);
+
+		}
+
+		/**
+		 * Schedules the re-registration, unless already scheduled.
+		 */
+		void reregisterLater() {
+
+			if (!active || !reregistering.compareAndSet(false, true)) {
+				return;
+			}
+
+			long delay = nextDelay(attempts);
+			try {
+				timer.schedule(new Runnable() {
+					public void run() {
+						reregister();
+					}
+				}, delay, TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				reregistering.set(false);
+			}
+
+		}
+
+		/*
+		 * Sends the re-registration, unless the observation
+		 * has been stopped or it is working again.
+		 */
+		private void reregister() {
+
+			if (!active || observers.get(rdPath) != this) {
+				return;
+			}
+			if (System.nanoTime() - lastNotification <= maxAge && !request.isCanceled()) {
+				// a notification arrived in the meantime
+				reregistering.set(false);
+				return;
+			}
+
+			LOGGER.info("Registering again to the notifications of "+rdPath+" (attempt "+(attempts + 1)+")");
+			reregistrations.incrementAndGet();
+
+			final ListenableFuture<Status> registration = CoAPProxy.getInstance().reregister(rdPath, request);
+			registration.addListener(new Runnable() {
+				public void run() {
+					reregistered(registration);
+				}
+			}, MoreExecutors.sameThreadExecutor());
+
+		}
+
+		/*
+		 * Schedules a new attempt if the re-registration failed.
+		 * If it succeeded, a new observer has replaced this one.
+		 */
+		private void reregistered(ListenableFuture<Status> registration) {
+
+			Status status;
+			try {
+				status = registration.get();
+			} catch (InterruptedException e) {
+				status = Status.FAIL;
+			} catch (ExecutionException e) {
+				status = Status.FAIL;
+			}
+
+			if (status == Status.OK || !active) {
+				return;
+			}
+
+			LOGGER.warning("Registration to the notifications of "+rdPath+" failed: "+status);
+			attempts++;
+			reregistering.set(false);
+			reregisterLater();
+
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.californium.core.coap.MessageObserverAdapter#onResponse(org.eclipse.californium.core.coap.Response)
+		 */
+		@Override
+		public void onResponse(Response response) {
+
+			if (!active || response == null) {
+				return;
+			}
+
+			// set the response timestamp
+			response.setTimestamp(System.nanoTime());
+			update(response);
+
+			queue.offer(response);
+			schedule();
+
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.californium.core.coap.MessageObserverAdapter#onCancel()
+		 */
+		@Override
+		public void onCancel() {
+
+			if (active) {
+				LOGGER.warning("The observation of "+rdPath+" has been cancelled");
+				reregisterLater();
+			}
+
+		}
+
+		/**
+		 * Handles the queued notifications: caches them
+		 * and sends them to the <tt>AJObjectManagerApp</tt>.
+		 */
+		public void run() {
+
+			Response response;
+			while ((response = queue.poll()) != null) {
+				if (!active) {
+					break;
+				}
+				try {
+					CoAPProxy.getInstance().cacheResponse(request, response);
+					AJObjectManagerApp.getInstance().notify(rdPath, response);
+				} catch (RuntimeException e) {
+					LOGGER.severe("Exception while notifying "+rdPath+": "+e);
+				}
+			}
+
+			scheduled.set(false);
+
+			// a notification may have been queued after the last poll
+			if (active && !queue.isEmpty()) {
+				schedule();
+			}
+
+		}
+
+		/*
+		 * Hands off the notifications to a worker, unless one is already handling them.
+		 */
+		private void schedule() {
+
+			if (!scheduled.compareAndSet(false, true)) {
+				return;
+			}
+
+			try {
+				workers.execute(this);
+			} catch (RejectedExecutionException e) {
+				scheduled.set(false);
+				LOGGER.warning("Notification of "+rdPath+" dropped: the workers are shut down");
+			}
+
+		}
+
+	}
+
+}
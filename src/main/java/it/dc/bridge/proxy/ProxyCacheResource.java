@@ -1,10 +1,11 @@
 package it.dc.bridge.proxy;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URISyntaxException;
-import java.net.URLEncoder;
-import java.util.LinkedList;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.eclipse.californium.core.CoapResource;
@@ -12,20 +13,56 @@ import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
 import com.google.common.cache.CacheStats;
-import com.google.common.cache.LoadingCache;
 import com.google.common.primitives.Ints;
 
 
 /**
  * Resource to handle the caching in the proxy.
+ * <p>
+ * The cache has an entry for each requested URI, holding the representations
+ * of the resource by content format: a request is answered with a single
+ * lookup, whether it has an accept option or not, and the invalidation of
+ * a URI removes all its representations.
+ * <p>
+ * The cache is a {@link ConcurrentCache}, so the lookups do not take locks.
+ * The cached entries and responses are never modified: a new response or
+ * a revalidation replaces the entry with an updated copy, under the lock
+ * of the cache resource.
+ * <p>
+ * The cache is bounded by the bytes of the cached payloads (<tt>bridge.cache.bytes</tt>),
+ * and optionally the payloads of each CoAP node by a quota (<tt>bridge.cache.node.quota</tt>):
+ * a node exceeding its quota evicts its own entries, not the ones of the other nodes.
+ * <p>
+ * With <tt>bridge.cache.offheap</tt> set, the responses are serialized in the
+ * off-heap memory of a {@link SlabStore}, and rebuilt when they are returned:
+ * the heap holds only the URI index and the freshness information.
+ * <p>
+ * With <tt>bridge.cache.snapshot</tt> set to a file, the cache is saved in a
+ * {@link CacheSnapshot} every <tt>bridge.cache.snapshot.period</tt> milliseconds
+ * and at shutdown. After a restart, the responses of a URI are restored from
+ * the snapshot when the URI is first requested: the fresh ones are cached
+ * again, the expired ones are dropped.
+ * <p>
+ * The reads of each cached response are counted: a response read at least
+ * <tt>bridge.cache.refresh.rate</tt> times per minute is refreshed ahead of its
+ * expiration, when less than <tt>bridge.cache.refresh.percent</tt> percent of its
+ * max-age is left (see {@link #claimRefresh(Request)}), so the frequently read
+ * resources never expire.
+ * <p>
+ * The error responses to the GET requests are cached too (negative caching),
+ * so that a missing or overloaded resource is not requested at the rate of the
+ * AllJoyn calls: a 4.04 (Not Found) or 4.05 (Method Not Allowed) for its max-age,
+ * up to <tt>bridge.cache.error.ttl</tt> seconds, a 5.03 (Service Unavailable) for
+ * its max-age, and a timeout for <tt>bridge.cache.timeout.ttl</tt> seconds.
+ * The error response is kept in the entry of the URI, so it is accounted in
+ * the size of the cache and in the quota of the node.
  */
 public class ProxyCacheResource extends CoapResource implements CacheResource {
 
@@ -39,17 +76,87 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 			NetworkConfig.getStandard().getInt(NetworkConfig.Keys.HTTP_CACHE_RESPONSE_MAX_AGE);
 
 	/**
-	 * Maximum size for the cache.
+	 * Maximum size for the cache, in bytes of the cached payloads.
 	 */
-	private static final long CACHE_SIZE = 
-			NetworkConfig.getStandard().getInt(NetworkConfig.Keys.HTTP_CACHE_SIZE);
+	private static final long CACHE_BYTES = Long.getLong("bridge.cache.bytes", 1 << 20);
 
 	/**
-	 * The cache. http://code.google.com/p/guava-libraries/wiki/CachesExplained
+	 * Maximum size for the cached payloads of a single CoAP node, in bytes.
+	 * Zero means no quota.
 	 */
-	private final LoadingCache<CacheKey, Response> responseCache;
+	private static final long NODE_QUOTA = Long.getLong("bridge.cache.node.quota", 0);
 
-	private boolean enabled = false;
+	/**
+	 * The bytes accounted for each representation in addition to its payload
+	 * (the response and its options), so that empty payloads are not free.
+	 */
+	private static final int REPRESENTATION_OVERHEAD = 64;
+
+	/**
+	 * Maximum off-heap memory for the cached responses, in bytes.
+	 * Zero (the default) keeps the responses on the heap.
+	 */
+	private static final long OFF_HEAP = Long.getLong("bridge.cache.offheap", 0);
+
+	/**
+	 * The time (in seconds) an expired response can still be returned,
+	 * while it is revalidated by the proxy (stale-while-revalidate).
+	 * Zero disables the stale responses.
+	 */
+	private static final int STALE_WHILE_REVALIDATE = Math.max(0, Integer.getInteger("bridge.cache.stale", 0));
+
+	/**
+	 * The file of the cache snapshot. Without it (the default), the cache
+	 * is not saved.
+	 */
+	private static final String SNAPSHOT_FILE = System.getProperty("bridge.cache.snapshot");
+
+	/**
+	 * The time between two cache snapshots, in milliseconds.
+	 */
+	private static final long SNAPSHOT_PERIOD = Math.max(1000, Long.getLong("bridge.cache.snapshot.period", 60000));
+
+	/**
+	 * The reads per minute above which a response is refreshed ahead of its
+	 * expiration. Zero (the default) disables the refresh-ahead.
+	 */
+	private static final int REFRESH_RATE = Math.max(0, Integer.getInteger("bridge.cache.refresh.rate", 0));
+
+	/**
+	 * The part of the max-age, in percent, left when a frequently read
+	 * response is refreshed.
+	 */
+	private static final int REFRESH_PERCENT = Math.min(100, Math.max(1, Integer.getInteger("bridge.cache.refresh.percent", 20)));
+
+	/**
+	 * The maximum time (in seconds) a 4.04 or 4.05 response is cached, and the
+	 * time a 5.03 response without max-age is cached. Zero disables the caching
+	 * of the error responses.
+	 */
+	private static final long ERROR_TTL = Math.max(0, Long.getLong("bridge.cache.error.ttl", 10));
+
+	/**
+	 * The time (in seconds) a request without response is answered with a
+	 * 5.04 (Gateway Timeout) from the cache. Zero disables the caching of the timeouts.
+	 */
+	private static final long TIMEOUT_TTL = Math.max(0, Long.getLong("bridge.cache.timeout.ttl", 5));
+
+	/**
+	 * The cache, by URI.
+	 */
+	private final ConcurrentCache<String, CacheEntry> responseCache;
+
+	/**
+	 * The off-heap store of the responses, or null if they are kept on the heap.
+	 */
+	private final SlabStore slabs = OFF_HEAP > 0 ? new SlabStore(OFF_HEAP) : null;
+
+	/**
+	 * The snapshot of the cache, or null if the cache is not saved.
+	 */
+	private final CacheSnapshot snapshot;
+
+	private volatile boolean enabled = false;
 
 	/**
 	 * Instantiates a new proxy cache resource.
@@ -68,36 +175,41 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 		this.enabled = enabled;
 
 		// builds a new cache that:
-		// - has a limited size of CACHE_SIZE entries
+		// - has a limited size of CACHE_BYTES bytes, NODE_QUOTA bytes for each node
 		// - removes entries after CACHE_RESPONSE_MAX_AGE seconds from the last
 		// write
 		// - record statistics
-		responseCache = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).recordStats().expireAfterWrite(CACHE_RESPONSE_MAX_AGE, TimeUnit.SECONDS).build(new CacheLoader<CacheKey, Response>() {
-			@Override
-			public Response load(CacheKey request) throws NullPointerException {
-				// retreive the response from the incoming request, no
-				// exceptions are thrown
-				Response cachedResponse = request.getResponse();
-
-				// check for null and raise an exception that clients must
-				// handle
-				if (cachedResponse == null) {
-					throw new NullPointerException();
-				}
-
-				return cachedResponse;
+		// - frees the stored responses leaving the cache
+		responseCache = new ConcurrentCache<String, CacheEntry>(CACHE_BYTES, NODE_QUOTA,
+				4 * REPRESENTATION_OVERHEAD, CACHE_RESPONSE_MAX_AGE, TimeUnit.SECONDS,
+				new ConcurrentCache.RemovalListener<String, CacheEntry>() {
+			public void onRemoval(String uri, CacheEntry entry, CacheEntry replacement) {
+				entry.freeExcept(replacement);
 			}
 		});
+
+		if (SNAPSHOT_FILE != null) {
+			snapshot = new CacheSnapshot(new File(SNAPSHOT_FILE), CACHE_RESPONSE_MAX_AGE, TimeUnit.SECONDS);
+			snapshot.start(new Runnable() {
+				public void run() {
+					writeSnapshot();
+				}
+			}, SNAPSHOT_PERIOD);
+		} else {
+			snapshot = null;
+		}
 	}
 
 	/**
 	 * Puts in cache an entry or, if already present, refreshes it. The method
 	 * first checks the response code, only the 2.xx codes are cached by coap.
-	 * In case of 2.01, 2.02, and 2.04 response codes it invalidates the
-	 * possibly present response. In case of 2.03 it updates the freshness of
-	 * the response with the max-age option provided. In case of 2.05 it creates
-	 * the key and caches the response if the max-age option is higher than
-	 * zero.
+	 * In case of 2.01, 2.02, and 2.04 response codes it invalidates all the
+	 * possibly present representations of the URI. In case of 2.03 it updates the freshness of
+	 * the representation with the validated etag, with the max-age option provided. In case of 2.05 it
+	 * caches the representation if the max-age option is higher than zero.
+	 * <p>
+	 * The 4.04, 4.05, 5.03 and 5.04 (timeout) responses to a GET request are
+	 * cached for the URI, until a success response for the URI.
 	 */
 	public synchronized void cacheResponse(Request request, Response response) {
 		// enable or disable the caching (debug purposes)
@@ -109,140 +221,313 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 		ResponseCode code = response.getCode();
 
 		if (ResponseCode.isSuccess(code)) {
-			// get the request
-			CacheKey cacheKey = null;
-			try {
-				cacheKey = CacheKey.fromContentTypeOption(request);
-			} catch (URISyntaxException e) {
-				LOGGER.severe("Cannot create the cache key: " + e.getMessage());
+			String uri = uriOf(request);
+			if (snapshot != null) {
+				// the saved responses of the URI are outdated
+				snapshot.discard(uri);
 			}
+			invalidateError(uri, null);
 
 			if (code == ResponseCode.CREATED || code == ResponseCode.DELETED || code == ResponseCode.CHANGED) {
-				// the stored response should be invalidated if the response has
+				// the stored representations should be invalidated if the response has
 				// codes: 2.01, 2.02, 2.04.
-				invalidateRequest(cacheKey);
+				responseCache.remove(uri);
 			} else if (code == ResponseCode.VALID) {
-				// increase the max-age value according to the new response
-				Long maxAgeOption = response.getOptions().getMaxAge();
-				if (maxAgeOption != null) {
-					// get the cached response
-					Response cachedResponse = responseCache.getUnchecked(cacheKey);
+				// the cached representation with the validated etag is fresh again
+				CacheEntry entry = responseCache.peek(uri);
+				StoredResponse cachedResponse = null;
+				if (entry != null && response.getOptions().getETagCount() > 0) {
+					cachedResponse = entry.getValidated(response.getOptions().getETags().get(0));
+				}
 
-					// calculate the new parameters
-					long newCurrentTime = response.getTimestamp();
-					long newMaxAge = maxAgeOption.longValue();
+				// null if the off-heap memory of the response has been freed
+				Response validatedResponse = cachedResponse == null ? null : cachedResponse.getResponse();
 
-					// set the new parameters
-					cachedResponse.getOptions().setMaxAge(newMaxAge);
-					cachedResponse.setTimestamp(newCurrentTime);
+				if (validatedResponse != null) {
+					// the max-age of the validation replaces the old one
+					Long maxAgeOption = response.getOptions().getMaxAge();
+					long newMaxAge = OptionNumberRegistry.Defaults.MAX_AGE;
+					if (maxAgeOption != null) {
+						newMaxAge = maxAgeOption.longValue();
+					}
+
+					// the copy with the new parameters replaces the cached response,
+					// and the new write restarts the entry expiration
+					StoredResponse validated = storedOf(copyOf(validatedResponse, newMaxAge, response.getTimestamp()));
+					store(uri, entry.with(entry.formatOf(cachedResponse), validated, false), validated);
 
 					LOGGER.fine("Updated cached response");
 				} else {
-					LOGGER.warning("No max-age option set in response: " + response);
+					LOGGER.warning("No cached response for the validated etag: " + response);
 				}
 			} else if (code == ResponseCode.CONTENT) {
 				// set max-age if not set
 				Long maxAgeOption = response.getOptions().getMaxAge();
 				if (maxAgeOption == null) {
 					response.getOptions().setMaxAge(OptionNumberRegistry.Defaults.MAX_AGE);
+					maxAgeOption = OptionNumberRegistry.Defaults.MAX_AGE;
 				}
 
+				int mediaType = mediaTypeOf(request, response);
+				CacheEntry entry = responseCache.peek(uri);
+
 				if (maxAgeOption > 0) {
-					// cache the request
-					try {
-						// Caches loaded by a CacheLoader will call
-						// CacheLoader.load(K) to load new values into the cache
-						// when used the get method.
-						Response responseInserted = responseCache.get(cacheKey);
-						if (responseInserted != null) {
-							LOGGER.fine("Cached response");
-						} else {
-							LOGGER.warning("Failed to insert the response in the cache");
-						}
-					} catch (Exception e) {
-						// swallow
-						LOGGER.severe("Exception while inserting the response in the cache");
+					// cache the representation,
+					// a new notification replaces the cached one
+					if (entry == null) {
+						entry = CacheEntry.EMPTY;
 					}
-				} else {
-					// if the max-age option is set to 0, then the response
+					boolean isDefault = request.getOptions().getAccept() == MediaTypeRegistry.UNDEFINED;
+					StoredResponse stored = storedOf(response);
+					if (store(uri, entry.with(mediaType, stored, isDefault), stored)) {
+						LOGGER.fine("Cached response");
+					} else {
+						LOGGER.fine("Response not admitted in the cache");
+					}
+				} else if (entry != null) {
+					// if the max-age option is set to 0, then the representation
 					// should be invalidated
-					invalidateRequest(request);
+					invalidateRepresentation(uri, entry, mediaType);
 				}
 			} else {
 				// this code should not be reached
 				LOGGER.severe("Code not recognized: " + code);
 			}
+		} else if (request.getCode() == Code.GET) {
+			long ttl = getErrorLifetime(response);
+			if (ttl > 0) {
+				String uri = uriOf(request);
+				CacheEntry entry = responseCache.peek(uri);
+				if (entry == null) {
+					entry = CacheEntry.EMPTY;
+				}
+				StoredResponse error = StoredResponse.onHeap(copyOf(response, ttl, response.getTimestamp()));
+				if (store(uri, entry.withError(error), error)) {
+					LOGGER.fine("Cached error response " + code);
+				}
+			}
 		}
 	}
 
-	public synchronized CacheStats getCacheStats() {
+	public CacheStats getCacheStats() {
 
 		return responseCache.stats();
 
 	}
 
+	/**
+	 * Returns the bytes used in the cache by each CoAP node,
+	 * identified by its address and port.
+	 * 
+	 * @return a snapshot of the bytes used by each node
+	 */
+	public Map<String, Long> getNodeUsage() {
+
+		return responseCache.getGroupWeights();
+
+	}
+
 	/**
 	 * Retrieves the response in the cache that matches the request passed, null
-	 * otherwise. The method creates the key for the cache starting from the
-	 * request and checks if the cache contains it. If present, the method
-	 * updates the max-age of the linked response to consider the time passed in
-	 * the cache (according to the freshness model) and returns it. On the
-	 * contrary, if the response has passed its expiration time, it is
-	 * invalidated and the method returns null.
+	 * otherwise. The method looks up the entry of the requested URI and
+	 * takes the representation of the accept option (or the default one).
+	 * If present and fresh (according to the freshness model), the method
+	 * returns it. On the contrary, if the response has passed its expiration
+	 * time, it is invalidated and the method returns null. The lookup does
+	 * not take locks, and the cached response is not modified.
+	 * <p>
+	 * An expired response is still returned, unchanged, within the
+	 * stale-while-revalidate window (the <tt>bridge.cache.stale</tt> seconds
+	 * after its expiration): the caller should check it with
+	 * {@link #isStale(Response)} and revalidate it. An expired response with
+	 * an etag is not invalidated, so that it can be revalidated (see
+	 * {@link #getRevalidableResponse(Request)}).
+	 * <p>
+	 * Without a representation to return, a cached error response for the
+	 * URI is returned, if not expired.
 	 * 
 	 * @param request the request message
 	 */
-	public synchronized Response getResponse(Request request) {
+	public Response getResponse(Request request) {
 		if (!enabled) {
 			return null;
 		}
 
 		// search the desired representation
-		Response response = null;
-		CacheKey cacheKey = null;
-
-		for (CacheKey acceptKey : CacheKey.fromAcceptOptions(request)) {
-			response = responseCache.getIfPresent(acceptKey);
-			cacheKey = acceptKey;
+		String uri = uriOf(request);
+		CacheEntry entry = responseCache.get(uri);
+		if (entry == null && snapshot != null && snapshot.contains(uri)) {
+			entry = restore(uri);
+		}
+		if (entry == null) {
+			return null;
+		}
 
-			if (response != null) {
-				break;
-			}
+		Response response = getResponse(uri, entry, request.getOptions().getAccept());
+		if (response == null && entry.error != null) {
+			// a recent error response is returned instead of requesting the URI again
+			response = getErrorResponse(uri, entry);
 		}
 
+		return response;
+	}
+
+	/*
+	 * Retrieves the cached representation for the accept option.
+	 */
+	private Response getResponse(String uri, CacheEntry entry, int accept) {
+
+		StoredResponse stored = entry.get(accept);
+
 		// if the response is not null, manage the cached response
-		if (response != null) {
-			LOGGER.info("Cache hit");
-
-			// check if the response is expired
-			long currentTime = System.nanoTime();
-			long nanosLeft = getRemainingLifetime(response, currentTime);
-			if (nanosLeft > 0) {
-				// if the response can be used, then update its max-age to
-				// consider the aging of the response while in the cache
-				response.getOptions().setMaxAge(nanosLeft);
-				// set the current time as the response timestamp
-				response.setTimestamp(currentTime);
-			} else {
-				LOGGER.info("Expired response");
-				invalidateRequest(cacheKey);
-				return null;
-			}
+		if (stored == null) {
+			return null;
 		}
 
-		return response;
+		LOGGER.info("Cache hit");
+
+		// check if the response is expired
+		long secondsLeft = getRemainingLifetime(stored.getTimestamp(), stored.getMaxAge(), System.nanoTime());
+		if (secondsLeft > 0) {
+			stored.recordRead();
+			LOGGER.fine("Fresh response");
+		} else if (-secondsLeft < STALE_WHILE_REVALIDATE) {
+			LOGGER.info("Stale response");
+		} else if (stored.hasETag()) {
+			// the response is kept, to be revalidated with its etag
+			LOGGER.info("Expired response");
+			return null;
+		} else {
+			LOGGER.info("Expired response");
+			invalidateRepresentation(uri, entry, entry.formatOf(stored));
+			return null;
+		}
+
+		// null if evicted while reading it
+		return stored.getResponse();
+	}
+
+	/*
+	 * Retrieves the error response cached for the URI, removing it if expired.
+	 */
+	private Response getErrorResponse(String uri, CacheEntry entry) {
+
+		StoredResponse error = entry.error;
+		if (getRemainingLifetime(error.getTimestamp(), error.getMaxAge(), System.nanoTime()) > 0) {
+			LOGGER.info("Cached error response");
+			return error.getResponse();
+		}
+		invalidateError(uri, error);
+
+		return null;
+
+	}
+
+	/**
+	 * Retrieves the expired response in the cache that matches the request passed,
+	 * if it has an etag: the response can be revalidated by sending the request
+	 * with its etag, and a 2.03 (Valid) response makes it fresh again.
+	 * 
+	 * @param request the request message
+	 * @return the expired response with an etag, or null
+	 */
+	public Response getRevalidableResponse(Request request) {
+		if (!enabled) {
+			return null;
+		}
+
+		CacheEntry entry = responseCache.peek(uriOf(request));
+		StoredResponse stored = entry == null ? null : entry.get(request.getOptions().getAccept());
+
+		if (stored != null && stored.hasETag()
+				&& getRemainingLifetime(stored.getTimestamp(), stored.getMaxAge(), System.nanoTime()) <= 0) {
+			return stored.getResponse();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Checks if a response returned by the cache has passed its expiration
+	 * time, so it must be revalidated.
+	 * 
+	 * @param response the cached response
+	 * @return true if the response is stale
+	 */
+	public boolean isStale(Response response) {
+
+		return getRemainingLifetime(response) <= 0;
+
 	}
 
+	/**
+	 * Checks if the fresh response cached for the request should be refreshed
+	 * ahead of its expiration: it has been read at least <tt>bridge.cache.refresh.rate</tt>
+	 * times per minute since it has been cached, and less than <tt>bridge.cache.refresh.percent</tt>
+	 * percent of its max-age is left. The method returns true only once for
+	 * each cached response, so the caller sends a single refresh request.
+	 * 
+	 * @param request the request message
+	 * @return true if the caller should refresh the response
+	 */
+	public boolean claimRefresh(Request request) {
+		if (!enabled || REFRESH_RATE == 0) {
+			return false;
+		}
+
+		CacheEntry entry = responseCache.peek(uriOf(request));
+		StoredResponse stored = entry == null ? null : entry.get(request.getOptions().getAccept());
+		if (stored == null) {
+			return false;
+		}
+
+		long age = System.nanoTime() - stored.getTimestamp();
+		long lifetime = TimeUnit.SECONDS.toNanos(stored.getMaxAge());
+		if (age >= lifetime || lifetime - age > lifetime / 100 * REFRESH_PERCENT) {
+			return false;
+		}
+
+		// the reads per minute since the response has been cached
+		if ((double) stored.getReads() * TimeUnit.MINUTES.toNanos(1) < (double) REFRESH_RATE * age) {
+			return false;
+		}
+
+		return stored.claimRefresh();
+	}
+
+	/**
+	 * Invalidates all the cached representations of the requested URI.
+	 * 
+	 * @param request the request message
+	 */
 	public synchronized void invalidateRequest(Request request) {
 
-		invalidateRequest(CacheKey.fromAcceptOptions(request));
+		String uri = uriOf(request);
+		if (snapshot != null) {
+			snapshot.discard(uri);
+		}
+		responseCache.remove(uri);
 		LOGGER.fine("Invalidated request");
 
 	}
 
+	/**
+	 * Returns the identity of the request used by the cache, i.e. the requested
+	 * URI and the accept option: the requests with the same identity are
+	 * answered by the same cached response.
+	 * 
+	 * @param request the request message
+	 * @return the request identity
+	 */
+	static String getRequestKey(Request request) {
+
+		return uriOf(request) + "#" + request.getOptions().getAccept();
+
+	}
+
 	@Override
-	public void handleDELETE(CoapExchange exchange) {
-		responseCache.invalidateAll();
+	public synchronized void handleDELETE(CoapExchange exchange) {
+		responseCache.clear();
 		exchange.respond(ResponseCode.DELETED);
 	}
 
@@ -253,13 +538,37 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 
 		// get cache values
 		builder.append("\nCached values:\n");
-		for (CacheKey cachedRequest : responseCache.asMap().keySet()) {
-			Response response = responseCache.asMap().get(cachedRequest);
+		for (Map.Entry<String, CacheEntry> cached : responseCache.snapshot().entrySet()) {
+			for (Map.Entry<Integer, StoredResponse> representation : cached.getValue().representations.entrySet()) {
+				int mediaType = representation.getKey();
+				StoredResponse stored = representation.getValue();
 
-			builder.append(cachedRequest.getUri().toString() + " (" + 
-					MediaTypeRegistry.toString(cachedRequest.getMediaType()) + ") > " + getRemainingLifetime(response) + " seconds | (" + cachedRequest.getMediaType() + ")\n");
+				builder.append(cached.getKey() + " (" + 
+						MediaTypeRegistry.toString(mediaType) + ") > " + getRemainingLifetime(stored.getTimestamp(), stored.getMaxAge(), System.nanoTime()) + " seconds | (" + mediaType + ")\n");
+			}
+
+			StoredResponse error = cached.getValue().error;
+			if (error != null) {
+				Response response = error.getResponse();
+				builder.append(cached.getKey() + " (" + response.getCode() + ") > "
+						+ getRemainingLifetime(error.getTimestamp(), error.getMaxAge(), System.nanoTime()) + " seconds\n");
+			}
 		}
 
+		builder.append("\nUsage: " + responseCache.getWeight() + " of " + responseCache.getMaximumWeight() + " bytes"
+				+ (NODE_QUOTA > 0 ? ", " + NODE_QUOTA + " bytes for each node" : "") + "\n");
+		for (Map.Entry<String, Long> node : getNodeUsage().entrySet()) {
+			builder.append(" - " + node.getKey() + ": " + node.getValue() + " bytes\n");
+		}
+
+		if (slabs != null) {
+			builder.append("Off-heap: " + slabs.getAllocated() + " of " + OFF_HEAP + " bytes allocated\n");
+		}
+
+		CacheStats stats = responseCache.stats();
+		builder.append("\nHits: " + stats.hitCount() + ", misses: " + stats.missCount() + ", evictions: " + stats.evictionCount()
+				+ ", rejected: " + responseCache.getRejections() + "\n");
+
 		exchange.respond(ResponseCode.CONTENT, builder.toString());
 	}
 
@@ -272,7 +581,38 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 
 	private long getRemainingLifetime(Response response) {
 
-		return getRemainingLifetime(response, System.nanoTime());
+		Long maxAgeOption = response.getOptions().getMaxAge();
+		long maxAge = OptionNumberRegistry.Defaults.MAX_AGE;
+		if (maxAgeOption != null) {
+			maxAge = maxAgeOption.longValue();
+		}
+
+		return getRemainingLifetime(response.getTimestamp(), maxAge, System.nanoTime());
+
+	}
+
+	/*
+	 * Returns the time (in seconds) an error response is cached, zero if it is not cached.
+	 * A 5.03 response has the max-age after which the request can be retried.
+	 */
+	private static long getErrorLifetime(Response response) {
+
+		ResponseCode code = response.getCode();
+		Long maxAgeOption = response.getOptions().getMaxAge();
+
+		if (code == ResponseCode.NOT_FOUND || code == ResponseCode.METHOD_NOT_ALLOWED) {
+			long maxAge = maxAgeOption != null ? maxAgeOption.longValue() : OptionNumberRegistry.Defaults.MAX_AGE;
+			return Math.min(maxAge, ERROR_TTL);
+		} else if (code == ResponseCode.SERVICE_UNAVAILABLE) {
+			if (ERROR_TTL == 0) {
+				return 0;
+			}
+			return maxAgeOption != null ? maxAgeOption.longValue() : ERROR_TTL;
+		} else if (code == ResponseCode.GATEWAY_TIMEOUT) {
+			return TIMEOUT_TTL;
+		}
+
+		return 0;
 
 	}
 
@@ -283,20 +623,12 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 	 * timestamp. If the max-age option is not specified, it will be assumed the
 	 * default (60 seconds).
 	 * 
-	 * @param response the response
+	 * @param arriveTime the response timestamp
+	 * @param oldMaxAge the response max-age
 	 * @param currentTime the current time
 	 * @return true, if is expired
 	 */
-	private long getRemainingLifetime(Response response, long currentTime) {
-
-		// get the timestamp
-		long arriveTime = response.getTimestamp();
-
-		Long maxAgeOption = response.getOptions().getMaxAge();
-		long oldMaxAge = OptionNumberRegistry.Defaults.MAX_AGE;
-		if (maxAgeOption != null) {
-			oldMaxAge = maxAgeOption.longValue();
-		}
+	private long getRemainingLifetime(long arriveTime, long oldMaxAge, long currentTime) {
 
 		// calculate the time that the response has spent in the cache
 		double secondsInCache = TimeUnit.NANOSECONDS.toSeconds(currentTime - arriveTime);
@@ -306,184 +638,386 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 
 	}
 
-	private void invalidateRequest(CacheKey cacheKey) {
+	/*
+	 * Removes a representation from the URI entry, and the entry itself
+	 * when it has no more representations. Nothing is removed if the
+	 * entry has been replaced in the meantime.
+	 */
+	private synchronized void invalidateRepresentation(String uri, CacheEntry entry, int mediaType) {
+
+		if (responseCache.peek(uri) != entry) {
+			return;
+		}
+
+		CacheEntry remaining = entry.without(mediaType);
+		if (remaining == null) {
+			responseCache.remove(uri, entry);
+		} else {
+			store(uri, remaining, null);
+		}
+
+	}
+
+	/*
+	 * Removes the error response from the URI entry, and the entry itself
+	 * when it has no representations. If an error response is specified,
+	 * nothing is removed if it has been replaced in the meantime.
+	 */
+	private synchronized void invalidateError(String uri, StoredResponse error) {
+
+		CacheEntry entry = responseCache.peek(uri);
+		if (entry == null || entry.error == null || (error != null && entry.error != error)) {
+			return;
+		}
 
-		responseCache.invalidate(cacheKey);
+		CacheEntry remaining = entry.withoutError();
+		if (remaining == null) {
+			responseCache.remove(uri, entry);
+		} else {
+			store(uri, remaining, null);
+		}
 
 	}
 
-	private void invalidateRequest(List<CacheKey> cacheKeys) {
+	/*
+	 * Caches again the responses of the URI saved in the snapshot, if
+	 * fresh or revalidable with their etag, the first time the URI is
+	 * requested. Returns the restored entry, or null.
+	 * A response is revalidable for the lifetime of the cache entries.
+	 */
+	private synchronized CacheEntry restore(String uri) {
 
-		responseCache.invalidateAll(cacheKeys);
+		List<CacheSnapshot.Restored> restored = snapshot.take(uri);
+		if (restored == null) {
+			return null;
+		}
+
+		CacheEntry entry = CacheEntry.EMPTY;
+		long now = System.nanoTime();
+		for (CacheSnapshot.Restored representation : restored) {
+			StoredResponse stored = storedOf(representation.response);
+			if (getRemainingLifetime(stored.getTimestamp(), stored.getMaxAge(), now) > -STALE_WHILE_REVALIDATE
+					|| (stored.hasETag() && now - stored.getTimestamp() < TimeUnit.SECONDS.toNanos(CACHE_RESPONSE_MAX_AGE))) {
+				entry = entry.with(representation.mediaType, stored, representation.isDefault);
+			} else {
+				stored.free();
+			}
+		}
+
+		// an entry cached in the meantime is more recent
+		if (entry == CacheEntry.EMPTY || responseCache.peek(uri) != null) {
+			entry.freeExcept(null);
+			return null;
+		}
+		if (!responseCache.put(uri, entry, nodeOf(uri), entry.weight)) {
+			entry.freeExcept(null);
+			return null;
+		}
+
+		LOGGER.fine("Restored " + entry.representations.size() + " cached responses of " + uri);
+		return entry;
+
+	}
+
+	/*
+	 * Saves the cached representations in the snapshot.
+	 */
+	private void writeSnapshot() {
+
+		List<CacheSnapshot.Record> records = new ArrayList<CacheSnapshot.Record>();
+		for (Map.Entry<String, CacheEntry> cached : responseCache.snapshot().entrySet()) {
+			CacheEntry entry = cached.getValue();
+			for (Map.Entry<Integer, StoredResponse> representation : entry.representations.entrySet()) {
+				records.add(new CacheSnapshot.Record(cached.getKey(), representation.getKey(),
+						representation.getKey() == entry.defaultType, representation.getValue()));
+			}
+		}
+
+		snapshot.write(records);
+
+	}
+
+	/*
+	 * Stores the entry of the URI, accounted to the node of the URI.
+	 * If the entry is not admitted, the added response is freed.
+	 */
+	private boolean store(String uri, CacheEntry entry, StoredResponse added) {
+
+		if (responseCache.put(uri, entry, nodeOf(uri), entry.weight)) {
+			return true;
+		}
+		if (added != null) {
+			added.free();
+		}
+
+		return false;
+
+	}
+
+	/*
+	 * Stores the response off-heap if possible, otherwise on the heap.
+	 */
+	private StoredResponse storedOf(Response response) {
+
+		if (slabs != null) {
+			StoredResponse stored = slabs.store(response);
+			if (stored != null) {
+				return stored;
+			}
+			LOGGER.fine("No off-heap room for the response, stored on the heap");
+		}
+
+		return StoredResponse.onHeap(response);
+
+	}
+
+	/*
+	 * Returns the node of a cache key, i.e. its host and port.
+	 */
+	private static String nodeOf(String uri) {
+
+		int end = uri.indexOf('/');
+
+		return end < 0 ? uri : uri.substring(0, end);
+
+	}
+
+	/*
+	 * Returns a copy of the cached response, with a new max-age and timestamp.
+	 */
+	static Response copyOf(Response response, long maxAge, long timestamp) {
+
+		Response ret = new Response(response.getCode());
+		ret.setOptions(new OptionSet(response.getOptions()));
+		ret.getOptions().setMaxAge(maxAge);
+		ret.setPayload(response.getPayload());
+		ret.setTimestamp(timestamp);
+
+		return ret;
 
 	}
 
 	/**
-	 * Nested class that normalizes the variable fields of the coap requests to
-	 * be used as a key for the cache. The class tries to handle also the
-	 * different requests that must refer to the same response (e.g., requests
-	 * that with or without the accept options produce the same response).
+	 * Returns the URI requested, as the uri-host, uri-port,
+	 * uri-path and uri-query options. The URI is the key of the cache.
+	 * 
+	 * @param request the request message
+	 * @return the requested URI
 	 */
-	private static final class CacheKey {
+	private static String uriOf(Request request) {
 
-		private final String uri;
-		private final int mediaType;
-		private Response response;
+		StringBuilder uri = new StringBuilder();
+		uri.append(request.getOptions().getUriHost()).append(':').append(request.getOptions().getUriPort());
+		uri.append('/').append(request.getOptions().getUriPathString());
+
+		String query = request.getOptions().getUriQueryString();
+		if (!query.isEmpty()) {
+			uri.append('?').append(query);
+		}
+
+		return uri.toString();
+
+	}
+
+	/**
+	 * Returns the content format of the representation to cache.
+	 * If it is a POST method, the media type is inside the request,
+	 * otherwise it is inside the response. An empty content type is
+	 * considered as text plain.
+	 * 
+	 * @param request the request message
+	 * @param response the response message
+	 * @return the media type
+	 */
+	private static int mediaTypeOf(Request request, Response response) {
+
+		int mediaType;
+		if (request.getCode() == Code.POST)
+			mediaType = request.getOptions().getContentFormat();
+		else
+			mediaType = response.getOptions().getContentFormat();
+		if (mediaType == MediaTypeRegistry.UNDEFINED) 
+			mediaType = MediaTypeRegistry.TEXT_PLAIN;
+
+		return mediaType;
+
+	}
+
+	/**
+	 * The cache entry of a URI. It holds the representations of the
+	 * resource by content format, and the default representation, i.e.
+	 * the one returned to the requests without the accept option.
+	 * Instead of representations, or while they cannot be returned, the
+	 * entry can hold the last error response to a GET request on the URI.
+	 * The entries are immutable: an update creates a new entry.
+	 * The weight of the entry is the size of its payloads, plus
+	 * an overhead for each response.
+	 */
+	private static final class CacheEntry {
+
+		/* the entry without representations */
+		private static final CacheEntry EMPTY = new CacheEntry(Collections.<Integer, StoredResponse>emptyMap(), MediaTypeRegistry.UNDEFINED, null);
+
+		/* the representations, by content format */
+		private final Map<Integer, StoredResponse> representations;
+
+		/* the content format of the default representation */
+		private final int defaultType;
+
+		/* the error response, or null */
+		private final StoredResponse error;
+
+		/* the weight of the entry, in bytes */
+		private final int weight;
+
+		private CacheEntry(Map<Integer, StoredResponse> representations, int defaultType, StoredResponse error) {
+			this.representations = representations;
+			this.defaultType = defaultType;
+			this.error = error;
+
+			int size = 0;
+			for (StoredResponse response : representations.values()) {
+				size += response.getSize() + REPRESENTATION_OVERHEAD;
+			}
+			if (error != null) {
+				size += error.getSize() + REPRESENTATION_OVERHEAD;
+			}
+			this.weight = size;
+		}
 
 		/**
-		 * Creates a list of keys for the cache from a request with multiple
-		 * accept options set. Method needed to search for content-type
-		 * wildcards in the cache (text/* means: text/plain, text/html,
-		 * text/xml, text/csv, etc.). If the accept option is not set, it simply
-		 * gives back the keys for every representation.
+		 * Returns the representation for the specified accept option.
+		 * Without the accept option, the default representation (or any
+		 * one, if it is not known) is returned.
 		 * 
-		 * @param request the request message
-		 * @return the list of cache keys
+		 * @param accept the accept option
+		 * @return the representation, or null
 		 */
-		private static List<CacheKey> fromAcceptOptions(Request request) {
+		StoredResponse get(int accept) {
 
-			if (request == null) {
-				throw new IllegalArgumentException("request == null");
+			if (accept != MediaTypeRegistry.UNDEFINED) {
+				return representations.get(accept);
 			}
 
-			List<CacheKey> cacheKeys = new LinkedList<ProxyCacheResource.CacheKey>();
-			String uri = request.getOptions().getUriHost() + request.getOptions().getUriPort() + 
-					request.getOptions().getUriPathString() + request.getOptions().getUriQueryString();
-			try {
-				uri = URLEncoder.encode(uri, "UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				LOGGER.severe("UTF-8 encoding not supported: " + e.getMessage());
+			StoredResponse response = representations.get(defaultType);
+			if (response == null && !representations.isEmpty()) {
+				response = representations.values().iterator().next();
 			}
 
-			// Implementation in new Cf (Only one accept option allowed)
-			Integer accept = request.getOptions().getAccept();
-			if (accept != MediaTypeRegistry.UNDEFINED) {
-				int mediaType = accept.intValue();
-				CacheKey cacheKey = new CacheKey(uri, mediaType);
-				cacheKeys.add(cacheKey);
-			} else {
-				// if the accept options are not set, simply set all media types
-				for (Integer acceptType : MediaTypeRegistry.getAllMediaTypes()) {
-					CacheKey cacheKey = new CacheKey(uri, acceptType);
-					cacheKeys.add(cacheKey);
-				}
-			}
+			return response;
 
-			return cacheKeys;
 		}
 
 		/**
-		 * Create a key for the cache starting from a request and the
-		 * content-type of the corresponding response.
+		 * Returns a copy of the entry storing a representation.
+		 * The new representation replaces the error response.
 		 * 
-		 * @param request
-		 * @return
-		 * @throws URISyntaxException
+		 * @param mediaType the content format
+		 * @param response the response
+		 * @param isDefault true if it is the response to a request without the accept option
+		 * @return the new entry
 		 */
-		private static CacheKey fromContentTypeOption(Request request) throws URISyntaxException {
+		CacheEntry with(int mediaType, StoredResponse response, boolean isDefault) {
 
-			if (request == null) {
-				throw new IllegalArgumentException("request == null");
-			}
+			Map<Integer, StoredResponse> copy = new HashMap<Integer, StoredResponse>(representations);
+			copy.put(mediaType, response);
 
-			Response response = request.getResponse();
-			if (response == null) {
-				return fromAcceptOptions(request).get(0);
-			}
+			return new CacheEntry(copy, isDefault ? mediaType : defaultType, null);
 
-			String uri = request.getOptions().getUriHost() + request.getOptions().getUriPort() + 
-					request.getOptions().getUriPathString() + request.getOptions().getUriQueryString();
-			Integer mediaType;
-			// if it is a POST method, the media type is inside the request
-			// otherwise it is inside the response
-			if (request.getCode() == Code.POST)
-				mediaType = request.getOptions().getContentFormat();
-			else
-				mediaType = response.getOptions().getContentFormat();
-			// an empty content type will be considered the content as text plain
-			if (mediaType == MediaTypeRegistry.UNDEFINED) 
-				mediaType = MediaTypeRegistry.TEXT_PLAIN;
+		}
 
-			// create the new cacheKey
-			CacheKey cacheKey = new CacheKey(uri, mediaType);
-			cacheKey.setResponse(response);
+		/**
+		 * Returns a copy of the entry without a representation.
+		 * 
+		 * @param mediaType the content format
+		 * @return the new entry, or null if it has no more responses
+		 */
+		CacheEntry without(int mediaType) {
 
-			return cacheKey;
+			Map<Integer, StoredResponse> copy = new HashMap<Integer, StoredResponse>(representations);
+			copy.remove(mediaType);
 
-		}
+			return copy.isEmpty() && error == null ? null : new CacheEntry(copy, defaultType, error);
 
-		public CacheKey(String uri, int mediaType) {
-			this.uri = uri;
-			this.mediaType = mediaType;
 		}
 
-		/*
-		 * (non-Javadoc)
-		 * @see java.lang.Object#equals(java.lang.Object)
+		/**
+		 * Returns a copy of the entry storing an error response.
+		 * 
+		 * @param response the error response
+		 * @return the new entry
 		 */
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj) {
-				return true;
-			}
-			if (obj == null) {
-				return false;
-			}
-			if (getClass() != obj.getClass()) {
-				return false;
-			}
-			CacheKey other = (CacheKey) obj;
-			if (mediaType != other.mediaType) {
-				return false;
-			}
-			if (uri == null) {
-				if (other.uri != null) {
-					return false;
-				}
-			} else if (!uri.equals(other.uri)) {
-				return false;
-			}
-			return true;
+		CacheEntry withError(StoredResponse response) {
+
+			return new CacheEntry(representations, defaultType, response);
+
 		}
 
 		/**
-		 * @return the mediaType
+		 * Returns a copy of the entry without the error response.
+		 * 
+		 * @return the new entry, or null if it has no representations
 		 */
-		public int getMediaType() {
-			return mediaType;
+		CacheEntry withoutError() {
+
+			return representations.isEmpty() ? null : new CacheEntry(representations, defaultType, null);
+
 		}
 
 		/**
-		 * @return the Uri
+		 * Returns the representation with the specified etag.
+		 * 
+		 * @param etag the etag
+		 * @return the representation, or null
 		 */
-		public String getUri() {
-			return uri;
+		StoredResponse getValidated(byte[] etag) {
+
+			for (StoredResponse response : representations.values()) {
+				if (response.hasETag(etag)) {
+					return response;
+				}
+			}
+
+			return null;
+
 		}
 
 		/**
-		 * @return the response
+		 * Returns the content format of a stored representation.
+		 * 
+		 * @param response the representation
+		 * @return the content format
 		 */
-		public Response getResponse() {
-			return response;
+		int formatOf(StoredResponse response) {
+
+			for (Map.Entry<Integer, StoredResponse> representation : representations.entrySet()) {
+				if (representation.getValue() == response) {
+					return representation.getKey();
+				}
+			}
+
+			return MediaTypeRegistry.UNDEFINED;
+
 		}
 
-		/*
-		 * (non-Javadoc)
-		 * @see java.lang.Object#hashCode()
+		/**
+		 * Frees the responses not held by the other entry.
+		 * 
+		 * @param other the entry replacing this one, or null
 		 */
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + mediaType;
-			result = prime * result + (uri == null ? 0 : uri.hashCode());
-			return result;
-		}
+		void freeExcept(CacheEntry other) {
 
-		private void setResponse(Response response) {
-			this.response = response;
+			for (StoredResponse response : representations.values()) {
+				if (other == null || !other.representations.containsValue(response)) {
+					response.free();
+				}
+			}
+			if (error != null && (other == null || other.error != error)) {
+				error.free();
+			}
 
 		}
+
 	}
 
 	public boolean isEnabled() {
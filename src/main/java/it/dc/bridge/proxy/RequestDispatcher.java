@@ -0,0 +1,281 @@
+package it.dc.bridge.proxy;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The <tt>RequestDispatcher</tt> sends the requests of the {@link CoAPProxy}
+ * to the CoAP Servers without waiting for the responses.
+ * <p>
+ * Each request is followed by a Californium <tt>MessageObserver</tt>, which
+ * completes the request future when the response arrives, when the request
+ * is rejected or when it times out. No thread waits for a response, so an
+ * outstanding request costs only memory.
+ * <p>
+ * The requests are sent when the {@link RequestScheduler} allows it, which bounds
+ * the requests in flight to each node and overall: the requests exceeding the
+ * bounds wait in the node queue and are sent as soon as a response arrives.
+ * When too many requests are waiting, the request is completed with a 5.03
+ * (Service Unavailable) response without being sent.
+ * <p>
+ * A request with no response after the timeout is cancelled and completed
+ * with a 5.04 (Gateway Timeout) response, as well as a rejected request.
+ */
+class RequestDispatcher {
+
+	/* the logger */
+	private static final Logger LOGGER = Logger.getGlobal();
+
+	/* the time (in milliseconds) a request waits for the response */
+	private final long timeout;
+
+	/* the timer expiring the requests without response */
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("coap-timeout").setDaemon(true).build());
+
+	/* the scheduler deciding when the requests are sent */
+	private final RequestScheduler scheduler = new RequestScheduler();
+
+	/**
+	 * Instantiates a new dispatcher.
+	 *
+	 * @param timeout the time (in milliseconds) a request waits for the response
+	 */
+	RequestDispatcher(long timeout) {
+
+		this.timeout = timeout;
+
+	}
+
+	/**
+	 * Sends the request, or queues it if too many requests are in flight
+	 * to the same node or overall. The method does not wait for the response.
+	 * <p>
+	 * The future is completed with the first response to the request: the
+	 * next responses (e.g., the notifications of an observe request) are
+	 * not reported. Cancelling the future cancels the request.
+	 *
+	 * @param request the request message, with its destination set
+	 * @param context the context of the destination node
+	 * @return the future response
+	 */
+	ListenableFuture<Response> send(Request request, String context) {
+
+		SettableFuture<Response> future = SettableFuture.create();
+		final Call call = new Call(request, context, future);
+
+		// the caller is no longer interested in the response
+		future.addListener(new Runnable() {
+			public void run() {
+				call.cancelled();
+			}
+		}, MoreExecutors.sameThreadExecutor());
+
+		if (!scheduler.submit(context, call.starter)) {
+			LOGGER.warning("Too many pending requests, "+request.getCode()+" on "+request.getURI()+" rejected");
+			future.set(new Response(ResponseCode.SERVICE_UNAVAILABLE));
+		}
+
+		return future;
+
+	}
+
+	/**
+	 * Returns the statistics of the nodes the requests are sent to.
+	 *
+	 * @return a snapshot of the statistics for each node
+	 */
+	List<NodeStatistics> getStatistics() {
+
+		return scheduler.getStatistics();
+
+	}
+
+	/**
+	 * A request in flight. It follows the request messages and
+	 * completes the future with the first response.
+	 */
+	private class Call extends MessageObserverAdapter implements Runnable {
+
+		/* the request message */
+		private final Request request;
+
+		/* the context of the destination node */
+		private final String context;
+
+		/* the future response */
+		private final SettableFuture<Response> future;
+
+		/* true if the request has been sent */
+		private final AtomicBoolean started = new AtomicBoolean(false);
+
+		/* true if the call is completed and its slot freed */
+		private final AtomicBoolean done = new AtomicBoolean(false);
+
+		/* the expiration of the call */
+		private volatile ScheduledFuture<?> deadline;
+
+		/* the task sending the request, run by the scheduler */
+		private final Runnable starter = new Runnable() {
+			public void run() {
+				start();
+			}
+		};
+
+		/**
+		 * Instantiates a new call.
+		 *
+		 * @param request the request message
+		 * @param context the context of the destination node
+		 * @param future the future response
+		 */
+		Call(Request request, String context, SettableFuture<Response> future) {
+
+			this.request = request;
+			this.context = context;
+			this.future = future;
+
+		}
+
+		/*
+		 * Sends the request. The scheduler slot is already taken.
+		 */
+		private void start() {
+
+			started.set(true);
+
+			// the caller gave up while the request was pending
+			if (future.isDone()) {
+				finish();
+				return;
+			}
+
+			request.addMessageObserver(this);
+			deadline = timer.schedule(this, timeout, TimeUnit.MILLISECONDS);
+			request.send();
+
+		}
+
+		/**
+		 * Cancels the request if the future has been cancelled by the caller.
+		 */
+		void cancelled() {
+
+			if (future.isCancelled() && started.get()) {
+				finish();
+				request.cancel();
+			}
+
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.californium.core.coap.MessageObserverAdapter#onResponse(org.eclipse.californium.core.coap.Response)
+		 */
+		@Override
+		public void onResponse(Response response) {
+
+			if (response != null) {
+				complete(response);
+			}
+
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.californium.core.coap.MessageObserverAdapter#onTimeout()
+		 */
+		@Override
+		public void onTimeout() {
+
+			if (complete(new Response(ResponseCode.GATEWAY_TIMEOUT))) {
+				LOGGER.warning("No response received for "+request.getCode()+" on "+request.getURI());
+			}
+
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.californium.core.coap.MessageObserverAdapter#onReject()
+		 */
+		@Override
+		public void onReject() {
+
+			if (complete(new Response(ResponseCode.GATEWAY_TIMEOUT))) {
+				LOGGER.warning("Request "+request.getCode()+" on "+request.getURI()+" rejected");
+			}
+
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.californium.core.coap.MessageObserverAdapter#onCancel()
+		 */
+		@Override
+		public void onCancel() {
+
+			if (finish()) {
+				future.cancel(false);
+			}
+
+		}
+
+		/**
+		 * Expires the request without response.
+		 */
+		public void run() {
+
+			if (complete(new Response(ResponseCode.GATEWAY_TIMEOUT))) {
+				LOGGER.warning("No response received for "+request.getCode()+" on "+request.getURI());
+				request.cancel();
+			}
+
+		}
+
+		/*
+		 * Completes the future with the specified response, if not done yet.
+		 */
+		private boolean complete(Response response) {
+
+			if (!finish()) {
+				return false;
+			}
+			future.set(response);
+
+			return true;
+
+		}
+
+		/*
+		 * Frees the in-flight slot, only the first time.
+		 */
+		private boolean finish() {
+
+			if (!done.compareAndSet(false, true)) {
+				return false;
+			}
+
+			ScheduledFuture<?> expiration = deadline;
+			if (expiration != null) {
+				expiration.cancel(false);
+			}
+			scheduler.release(context);
+
+			return true;
+
+		}
+
+	}
+
+}
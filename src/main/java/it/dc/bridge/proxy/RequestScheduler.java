@@ -0,0 +1,236 @@
+package it.dc.bridge.proxy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+/**
+ * The <tt>RequestScheduler</tt> decides when the requests of the {@link CoAPProxy}
+ * can be sent to their CoAP node.
+ * <p>
+ * Constrained nodes drop the requests they cannot handle, so the scheduler
+ * keeps at most <tt>NSTART</tt> outstanding requests for each node (the node is
+ * identified by its context in the Resource Directory): the following requests
+ * wait in a FIFO queue of the node. The total number of outstanding requests
+ * is also bounded; when a global slot is freed, the nodes with waiting requests
+ * are served in round-robin order, so that a busy node does not starve the others.
+ * <p>
+ * A task submitted to the scheduler is run when its request can be sent,
+ * and its completion must be reported with {@link #release(String)}.
+ */
+class RequestScheduler {
+
+	/* the maximum number of outstanding requests for each node */
+	private static final int NSTART = Math.max(1, Integer.getInteger("bridge.proxy.nstart",
+			NetworkConfig.getStandard().getInt(NetworkConfig.Keys.NSTART)));
+
+	/* the maximum number of outstanding requests */
+	private static final int MAX_IN_FLIGHT = Integer.getInteger("bridge.proxy.inflight", 256);
+
+	/* the maximum number of requests waiting to be sent */
+	private static final int MAX_PENDING = Integer.getInteger("bridge.proxy.pending", 8192);
+
+	/* map containing the <context, node> pair for each node, guarded by this */
+	private final Map<String, Node> nodes = new HashMap<String, Node>();
+
+	/* the nodes that can send a waiting request, in round-robin order */
+	private final Queue<Node> ready = new ArrayDeque<Node>();
+
+	/* the number of outstanding requests */
+	private int inFlight;
+
+	/* the number of requests waiting to be sent */
+	private int pending;
+
+	/**
+	 * Runs the task now if the node can receive another request,
+	 * otherwise queues it until a request to the same node (or a global slot)
+	 * is released.
+	 *
+	 * @param context the node context
+	 * @param task the task sending the request
+	 * @return false if the task has been rejected because too many requests are waiting
+	 */
+	boolean submit(String context, Runnable task) {
+
+		synchronized (this) {
+			Node node = nodes.get(context);
+			if (node == null) {
+				node = new Node(context);
+				nodes.put(context, node);
+			}
+
+			if (!node.queue.isEmpty() || node.outstanding >= NSTART || inFlight >= MAX_IN_FLIGHT) {
+				if (pending >= MAX_PENDING) {
+					return false;
+				}
+				node.queue.offer(new Waiting(task));
+				pending++;
+				markReady(node);
+				return true;
+			}
+
+			node.outstanding++;
+			node.sent++;
+			inFlight++;
+		}
+
+		task.run();
+
+		return true;
+
+	}
+
+	/**
+	 * Reports the completion of a request to the node,
+	 * and runs the tasks that can be run now.
+	 *
+	 * @param context the node context
+	 */
+	void release(String context) {
+
+		List<Runnable> tasks;
+
+		synchronized (this) {
+			Node node = nodes.get(context);
+			if (node == null || node.outstanding == 0) {
+				return;
+			}
+			node.outstanding--;
+			inFlight--;
+			markReady(node);
+
+			tasks = dequeue();
+		}
+
+		for (Runnable task : tasks) {
+			task.run();
+		}
+
+	}
+
+	/**
+	 * Returns the statistics of the nodes.
+	 *
+	 * @return a snapshot of the statistics for each node
+	 */
+	synchronized List<NodeStatistics> getStatistics() {
+
+		List<NodeStatistics> ret = new ArrayList<NodeStatistics>(nodes.size());
+		for (Node node : nodes.values()) {
+			ret.add(new NodeStatistics(node.context, node.outstanding, node.queue.size(),
+					node.sent, node.queued, node.totalWait, node.maxWait));
+		}
+
+		return ret;
+
+	}
+
+	/*
+	 * Adds the node to the ready nodes, if it has waiting requests and can send one.
+	 * Called holding the lock.
+	 */
+	private void markReady(Node node) {
+
+		if (!node.ready && !node.queue.isEmpty() && node.outstanding < NSTART) {
+			node.ready = true;
+			ready.offer(node);
+		}
+
+	}
+
+	/*
+	 * Takes the waiting tasks that can be run, one for each ready node in turn.
+	 * Called holding the lock.
+	 */
+	private List<Runnable> dequeue() {
+
+		if (ready.isEmpty() || inFlight >= MAX_IN_FLIGHT) {
+			return Collections.emptyList();
+		}
+
+		long now = System.nanoTime();
+		List<Runnable> ret = new ArrayList<Runnable>();
+		while (inFlight < MAX_IN_FLIGHT && !ready.isEmpty()) {
+			Node node = ready.poll();
+			node.ready = false;
+
+			Waiting waiting = node.queue.poll();
+			pending--;
+			node.outstanding++;
+			node.sent++;
+			node.queued++;
+			inFlight++;
+
+			long wait = now - waiting.time;
+			node.totalWait += wait;
+			node.maxWait = Math.max(node.maxWait, wait);
+			ret.add(waiting.task);
+
+			// the node goes back to the end of the round
+			markReady(node);
+		}
+
+		return ret;
+
+	}
+
+	/**
+	 * The requests state of a CoAP node.
+	 */
+	private static class Node {
+
+		/* the node context */
+		private final String context;
+
+		/* the waiting requests */
+		private final Queue<Waiting> queue = new ArrayDeque<Waiting>();
+
+		/* the number of outstanding requests */
+		private int outstanding;
+
+		/* true if the node is in the ready queue */
+		private boolean ready;
+
+		/* the number of sent requests */
+		private long sent;
+
+		/* the number of requests sent after waiting */
+		private long queued;
+
+		/* the total waiting time, in nanoseconds */
+		private long totalWait;
+
+		/* the longest waiting time, in nanoseconds */
+		private long maxWait;
+
+		Node(String context) {
+			this.context = context;
+		}
+
+	}
+
+	/**
+	 * A task waiting to be run.
+	 */
+	private static class Waiting {
+
+		/* the task */
+		private final Runnable task;
+
+		/* the time the task has been queued, as returned by System.nanoTime() */
+		private final long time = System.nanoTime();
+
+		Waiting(Runnable task) {
+			this.task = task;
+		}
+
+	}
+
+}
@@ -0,0 +1,331 @@
+package it.dc.bridge.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eclipse.californium.core.coap.Response;
+
+/**
+ * The <tt>SlabStore</tt> keeps the responses of the {@link ProxyCacheResource}
+ * out of the heap, so that the cached payloads and options do not load the
+ * garbage collector.
+ * <p>
+ * The memory is made of direct buffers (the slabs), allocated on demand up to
+ * the store capacity and never released. Each slab is divided into slots of
+ * one size class (powers of two from 64 bytes to the slab size), and a
+ * response is serialized (code, options and payload) in a slot of the
+ * smallest class holding it. The slots of the evicted responses go back to
+ * the free list of their class.
+ * <p>
+ * The responses are read without locks. Each slot has a state holding its
+ * generation, increased when the slot is reused, and the number of readers
+ * copying it: a reader pins the slot only if it still has the generation of
+ * the response, and a slot is reused only if no reader pins it. A reader of
+ * a reused slot gets no response, never the one of another URI.
+ */
+class SlabStore {
+
+	/* the size of a slab, and of the largest slot */
+	static final int SLAB_SIZE = 64 * 1024;
+
+	/* the size of the smallest slot */
+	private static final int MIN_SLOT = 64;
+
+	/* the bits of a slot state counting its readers, below the generation */
+	private static final int READER_BITS = 20;
+
+	private static final long READER_MASK = (1L << READER_BITS) - 1;
+
+	/* the slabs, by index */
+	private final AtomicReferenceArray<ByteBuffer> slabs;
+
+	/* the slot states of each slab, by offset / MIN_SLOT */
+	private final AtomicReferenceArray<AtomicLongArray> states;
+
+	/* the number of slabs allocated, guarded by this */
+	private int allocated;
+
+	/* the size classes, by increasing slot size */
+	private final SizeClass[] classes;
+
+	/**
+	 * Instantiates a new store.
+	 *
+	 * @param capacity the maximum memory of the store, in bytes
+	 */
+	SlabStore(long capacity) {
+
+		slabs = new AtomicReferenceArray<ByteBuffer>((int) Math.min(Integer.MAX_VALUE, Math.max(1, capacity / SLAB_SIZE)));
+		states = new AtomicReferenceArray<AtomicLongArray>(slabs.length());
+
+		int count = Integer.numberOfTrailingZeros(SLAB_SIZE / MIN_SLOT) + 1;
+		classes = new SizeClass[count];
+		for (int i = 0; i < count; i++) {
+			classes[i] = new SizeClass(MIN_SLOT << i);
+		}
+
+	}
+
+	/**
+	 * Stores the response.
+	 *
+	 * @param response the response
+	 * @return the stored response, or null if the store has no room for it
+	 */
+	StoredResponse store(Response response) {
+
+		byte[] data = StoredResponse.serialize(response);
+		if (data.length > SLAB_SIZE) {
+			return null;
+		}
+
+		long handle = allocate(data.length);
+		if (handle < 0) {
+			return null;
+		}
+
+		ByteBuffer buffer = slabs.get(slabOf(handle)).duplicate();
+		buffer.position(offsetOf(handle));
+		buffer.put(data);
+
+		long generation = states.get(slabOf(handle)).get(offsetOf(handle) / MIN_SLOT) >>> READER_BITS;
+
+		return new OffHeapResponse(response, handle, generation, data.length);
+
+	}
+
+	/**
+	 * Returns the memory allocated by the store.
+	 *
+	 * @return the allocated bytes
+	 */
+	synchronized long getAllocated() {
+
+		return (long) allocated * SLAB_SIZE;
+
+	}
+
+	/*
+	 * Takes a free slot of the smallest class holding the specified size.
+	 * Returns -1 if there are no free slots and no more slabs can be allocated.
+	 */
+	private synchronized long allocate(int size) {
+
+		int index = 0;
+		while (index < classes.length && classes[index].slotSize < size) {
+			index++;
+		}
+		if (index == classes.length) {
+			return -1;
+		}
+
+		// a free slot still copied by a reader is left for the next allocation
+		SizeClass sizeClass = classes[index];
+		if (sizeClass.count > 0 && reuse(sizeClass.free[sizeClass.count - 1])) {
+			return sizeClass.free[--sizeClass.count];
+		}
+
+		// the next slot of the last slab of the class
+		if (sizeClass.slab < 0 || sizeClass.next == SLAB_SIZE / sizeClass.slotSize) {
+			if (allocated == slabs.length()) {
+				return -1;
+			}
+			states.set(allocated, new AtomicLongArray(SLAB_SIZE / MIN_SLOT));
+			slabs.set(allocated, ByteBuffer.allocateDirect(SLAB_SIZE));
+			sizeClass.slab = allocated++;
+			sizeClass.next = 0;
+		}
+
+		return handleOf(index, sizeClass.slab, sizeClass.next++ * sizeClass.slotSize);
+
+	}
+
+	/*
+	 * Frees the slot, which is reused when no reader copies it.
+	 */
+	private synchronized void free(long handle) {
+
+		classes[classOf(handle)].push(handle);
+
+	}
+
+	/*
+	 * Starts a new generation of the slot, if no reader pins it.
+	 */
+	private boolean reuse(long handle) {
+
+		AtomicLongArray slabStates = states.get(slabOf(handle));
+		int index = offsetOf(handle) / MIN_SLOT;
+		long state = slabStates.get(index);
+
+		return (state & READER_MASK) == 0
+				&& slabStates.compareAndSet(index, state, ((state >>> READER_BITS) + 1) << READER_BITS);
+
+	}
+
+	/*
+	 * Pins the slot for a reader, if it still has the specified generation.
+	 */
+	private boolean pin(long handle, long generation) {
+
+		AtomicLongArray slabStates = states.get(slabOf(handle));
+		int index = offsetOf(handle) / MIN_SLOT;
+		while (true) {
+			long state = slabStates.get(index);
+			if (state >>> READER_BITS != generation) {
+				return false;
+			}
+			if (slabStates.compareAndSet(index, state, state + 1)) {
+				return true;
+			}
+		}
+
+	}
+
+	/*
+	 * Releases the slot pinned by a reader.
+	 */
+	private void unpin(long handle) {
+
+		states.get(slabOf(handle)).decrementAndGet(offsetOf(handle) / MIN_SLOT);
+
+	}
+
+	/*
+	 * Reads the content of the slot.
+	 */
+	private byte[] read(long handle, int length) {
+
+		ByteBuffer buffer = slabs.get(slabOf(handle)).duplicate();
+		buffer.position(offsetOf(handle));
+
+		byte[] ret = new byte[length];
+		buffer.get(ret);
+
+		return ret;
+
+	}
+
+	/*
+	 * The handle of a slot: the size class, the slab index and the offset within the slab.
+	 */
+	private static long handleOf(int sizeClass, int slab, int offset) {
+
+		return ((long) sizeClass << 56) | ((long) slab << 24) | offset;
+
+	}
+
+	private static int classOf(long handle) {
+
+		return (int) (handle >>> 56);
+
+	}
+
+	private static int slabOf(long handle) {
+
+		return (int) ((handle >>> 24) & 0xFFFFFFFFL);
+
+	}
+
+	private static int offsetOf(long handle) {
+
+		return (int) (handle & 0xFFFFFF);
+
+	}
+
+	/**
+	 * The slots of a size. Guarded by the store.
+	 */
+	private static final class SizeClass {
+
+		/* the slot size */
+		private final int slotSize;
+
+		/* the slots that can be reused, a stack of handles */
+		private long[] free = new long[16];
+
+		/* the number of free slots */
+		private int count;
+
+		/* the last slab of the class, -1 if none */
+		private int slab = -1;
+
+		/* the next slot never used of the last slab */
+		private int next;
+
+		SizeClass(int slotSize) {
+			this.slotSize = slotSize;
+		}
+
+		/*
+		 * Adds a slot to the free ones. The stack grows only when more
+		 * slots than ever are free, so the frees do not allocate.
+		 */
+		private void push(long handle) {
+
+			if (count == free.length) {
+				free = Arrays.copyOf(free, 2 * count);
+			}
+			free[count++] = handle;
+
+		}
+
+	}
+
+	/**
+	 * A response stored in a slot.
+	 */
+	private final class OffHeapResponse extends StoredResponse {
+
+		/* the slot */
+		private final long handle;
+
+		/* the generation of the slot holding the response */
+		private final long generation;
+
+		/* the length of the serialized response */
+		private final int length;
+
+		/* true if the slot has been freed */
+		private final AtomicBoolean freed = new AtomicBoolean(false);
+
+		OffHeapResponse(Response response, long handle, long generation, int length) {
+			super(response);
+			this.handle = handle;
+			this.generation = generation;
+			this.length = length;
+		}
+
+		@Override
+		Response getResponse() {
+
+			// the slot cannot be reused while it is pinned
+			if (freed.get() || !pin(handle, generation)) {
+				return null;
+			}
+			byte[] data;
+			try {
+				data = read(handle, length);
+			} finally {
+				unpin(handle);
+			}
+
+			return StoredResponse.deserialize(data, getTimestamp());
+
+		}
+
+		@Override
+		void free() {
+
+			if (freed.compareAndSet(false, true)) {
+				SlabStore.this.free(handle);
+			}
+
+		}
+
+	}
+
+}
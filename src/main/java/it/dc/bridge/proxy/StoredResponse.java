@@ -0,0 +1,261 @@
+package it.dc.bridge.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Response;
+
+/**
+ * A response stored by the {@link ProxyCacheResource}.
+ * <p>
+ * The freshness information (timestamp and max-age) and the etag are kept
+ * on the heap, so the cache checks them without reading the response.
+ * The response itself is kept on the heap or, with a {@link SlabStore},
+ * serialized in off-heap memory and rebuilt when it is read.
+ */
+abstract class StoredResponse {
+
+	/* the time the response has been received, as returned by System.nanoTime() */
+	private final long timestamp;
+
+	/* the max-age of the response, in seconds */
+	private final long maxAge;
+
+	/* the first etag of the response, or null */
+	private final byte[] etag;
+
+	/* the payload size */
+	private final int size;
+
+	/* the number of times the response has been read from the cache */
+	private final AtomicInteger reads = new AtomicInteger();
+
+	/* true if a refresh of the response has been requested */
+	private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+	/**
+	 * Instantiates a new stored response, taking the freshness
+	 * information from the response.
+	 *
+	 * @param response the response
+	 */
+	StoredResponse(Response response) {
+
+		Long maxAgeOption = response.getOptions().getMaxAge();
+
+		this.timestamp = response.getTimestamp();
+		this.maxAge = maxAgeOption != null ? maxAgeOption.longValue() : OptionNumberRegistry.Defaults.MAX_AGE;
+		this.etag = response.getOptions().getETagCount() > 0 ? response.getOptions().getETags().get(0) : null;
+		this.size = response.getPayloadSize();
+
+	}
+
+	/**
+	 * Stores the response on the heap.
+	 *
+	 * @param response the response
+	 * @return the stored response
+	 */
+	static StoredResponse onHeap(Response response) {
+
+		return new HeapResponse(response);
+
+	}
+
+	/**
+	 * Returns the response. The returned response must not be modified.
+	 *
+	 * @return the response, or null if its memory has been reclaimed
+	 */
+	abstract Response getResponse();
+
+	/**
+	 * Releases the memory of the response, if it is not on the heap.
+	 * The method can be called more than once.
+	 */
+	void free() {
+
+	}
+
+	/**
+	 * Returns the time the response has been received.
+	 *
+	 * @return the timestamp, as returned by System.nanoTime()
+	 */
+	long getTimestamp() {
+
+		return timestamp;
+
+	}
+
+	/**
+	 * Returns the max-age of the response.
+	 *
+	 * @return the max-age in seconds
+	 */
+	long getMaxAge() {
+
+		return maxAge;
+
+	}
+
+	/**
+	 * Checks if the response has an etag.
+	 *
+	 * @return true if the response has an etag
+	 */
+	boolean hasETag() {
+
+		return etag != null;
+
+	}
+
+	/**
+	 * Checks if the response has the specified etag.
+	 *
+	 * @param etag the etag
+	 * @return true if the etag is the one of the response
+	 */
+	boolean hasETag(byte[] etag) {
+
+		return this.etag != null && Arrays.equals(this.etag, etag);
+
+	}
+
+	/**
+	 * Returns the payload size.
+	 *
+	 * @return the payload size in bytes
+	 */
+	int getSize() {
+
+		return size;
+
+	}
+
+	/**
+	 * Counts a read of the response from the cache.
+	 */
+	void recordRead() {
+
+		reads.incrementAndGet();
+
+	}
+
+	/**
+	 * Returns the number of times the response has been read from the cache.
+	 *
+	 * @return the number of reads
+	 */
+	int getReads() {
+
+		return reads.get();
+
+	}
+
+	/**
+	 * Marks the response as being refreshed. Only the first call succeeds,
+	 * so a response is refreshed once.
+	 *
+	 * @return true if the caller should refresh the response
+	 */
+	boolean claimRefresh() {
+
+		return refreshing.compareAndSet(false, true);
+
+	}
+
+	/**
+	 * Serializes the response: the code, the number of options, each option
+	 * as number, length and value, and the payload.
+	 *
+	 * @param response the response
+	 * @return the serialized response
+	 */
+	static byte[] serialize(Response response) {
+
+		List<Option> options = response.getOptions().asSortedList();
+		byte[] payload = response.getPayload();
+		int payloadSize = payload == null ? 0 : payload.length;
+
+		int size = 3 + payloadSize;
+		for (Option option : options) {
+			size += 4 + option.getValue().length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.put((byte) response.getCode().value);
+		buffer.putShort((short) options.size());
+		for (Option option : options) {
+			byte[] value = option.getValue();
+			buffer.putShort((short) option.getNumber());
+			buffer.putShort((short) value.length);
+			buffer.put(value);
+		}
+		if (payloadSize > 0) {
+			buffer.put(payload);
+		}
+
+		return buffer.array();
+
+	}
+
+	/**
+	 * Rebuilds a response serialized by {@link #serialize(Response)}.
+	 *
+	 * @param data the serialized response
+	 * @param timestamp the response timestamp, as returned by System.nanoTime()
+	 * @return the response
+	 */
+	static Response deserialize(byte[] data, long timestamp) {
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		Response response = new Response(ResponseCode.valueOf(buffer.get() & 0xFF));
+
+		OptionSet options = new OptionSet();
+		int count = buffer.getShort() & 0xFFFF;
+		for (int i = 0; i < count; i++) {
+			int number = buffer.getShort() & 0xFFFF;
+			byte[] value = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(value);
+			options.addOption(new Option(number, value));
+		}
+		response.setOptions(options);
+
+		byte[] payload = new byte[buffer.remaining()];
+		buffer.get(payload);
+		response.setPayload(payload);
+		response.setTimestamp(timestamp);
+
+		return response;
+
+	}
+
+	/**
+	 * A response kept on the heap.
+	 */
+	private static final class HeapResponse extends StoredResponse {
+
+		/* the response */
+		private final Response response;
+
+		HeapResponse(Response response) {
+			super(response);
+			this.response = response;
+		}
+
+		@Override
+		Response getResponse() {
+			return response;
+		}
+
+	}
+
+}
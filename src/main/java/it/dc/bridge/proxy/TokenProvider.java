@@ -0,0 +1,158 @@
+package it.dc.bridge.proxy;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The <tt>TokenProvider</tt> creates the tokens of the requests sent by the
+ * {@link CoAPProxy} through its outbound endpoint.
+ * <p>
+ * Each thread owns a counter starting from a random salt: a token is obtained
+ * by scrambling the next counter value, so no random generator is created or
+ * shared between the threads. The tokens of the exchanges in flight are
+ * reserved until they are released, and a token already in use is never
+ * returned: two outstanding requests cannot have the same token.
+ * <p>
+ * The reserved tokens are kept in a table of primitive slots, without boxing
+ * or allocations: a token can only be stored in the slot given by its low bits,
+ * so a token is reserved by setting its slot with a CAS, and a token whose slot
+ * is taken is discarded for the next one. The table (<tt>bridge.token.slots</tt>)
+ * must be much larger than the exchanges in flight.
+ */
+class TokenProvider {
+
+	/* the token length, in bytes (from 2 to 8, so that the free tokens are never exhausted) */
+	static final int TOKEN_LENGTH = Math.min(8, Math.max(2, Integer.getInteger("bridge.token.length", 4)));
+
+	/* the increment of the token sequence (an odd constant, so the sequence covers all the values) */
+	private static final long INCREMENT = 0x9E3779B97F4A7C15L;
+
+	/* the mask keeping the token bytes */
+	private static final long MASK = TOKEN_LENGTH == 8 ? -1L : (1L << (8 * TOKEN_LENGTH)) - 1;
+
+	/* the number of slots of the reserved tokens (a power of two, at most the number of tokens) */
+	private static final int SLOTS = Integer.highestOneBit(Math.max(1024,
+			Math.min(TOKEN_LENGTH == 2 ? 1 << 16 : 1 << 24, Integer.getInteger("bridge.token.slots", 1 << 14))));
+
+	/* the value of a free slot; the zero token is never returned */
+	private static final long FREE = 0;
+
+	/* the generator of the thread salts */
+	private static final SecureRandom SEED = new SecureRandom();
+
+	/* the token sequence of each thread */
+	private static final ThreadLocal<long[]> SEQUENCE = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			synchronized (SEED) {
+				return new long[] { SEED.nextLong() };
+			}
+		}
+	};
+
+	/* the tokens of the exchanges in flight, each one in the slot of its low bits */
+	private final AtomicLongArray inFlight = new AtomicLongArray(SLOTS);
+
+	/**
+	 * Returns a new token, reserved until it is released.
+	 *
+	 * @return the token
+	 */
+	byte[] acquire() {
+
+		long[] sequence = SEQUENCE.get();
+		for (int attempts = 0; attempts < SLOTS; attempts++) {
+			sequence[0] += INCREMENT;
+			long value = scramble(sequence[0]) & MASK;
+			if (value != FREE && inFlight.compareAndSet(slotOf(value), FREE, value)) {
+				return toBytes(value);
+			}
+		}
+
+		throw new IllegalStateException("Too many tokens in flight, increase bridge.token.slots");
+
+	}
+
+	/**
+	 * Releases a token, which can be returned again.
+	 *
+	 * @param token the token, as returned by {@link #acquire()}
+	 */
+	void release(byte[] token) {
+
+		if (token != null && token.length == TOKEN_LENGTH) {
+			long value = toLong(token);
+			inFlight.compareAndSet(slotOf(value), value, FREE);
+		}
+
+	}
+
+	/**
+	 * Returns the number of tokens in use.
+	 *
+	 * @return the number of reserved tokens
+	 */
+	int getInFlight() {
+
+		int ret = 0;
+		for (int i = 0; i < SLOTS; i++) {
+			if (inFlight.get(i) != FREE) {
+				ret++;
+			}
+		}
+
+		return ret;
+
+	}
+
+	/*
+	 * The slot of a token: its low bits, already mixed by the scrambling.
+	 */
+	private static int slotOf(long value) {
+
+		return (int) value & (SLOTS - 1);
+
+	}
+
+	/*
+	 * A bijective mix of the bits (the finalizer of SplitMix64), so that
+	 * consecutive counter values give unrelated tokens.
+	 */
+	private static long scramble(long value) {
+
+		value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+		value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+		return value ^ (value >>> 31);
+
+	}
+
+	/*
+	 * Converts the token value to its bytes.
+	 */
+	private static byte[] toBytes(long value) {
+
+		byte[] token = new byte[TOKEN_LENGTH];
+		for (int i = TOKEN_LENGTH - 1; i >= 0; i--) {
+			token[i] = (byte) value;
+			value >>>= 8;
+		}
+
+		return token;
+
+	}
+
+	/*
+	 * Converts the token bytes to its value.
+	 */
+	private static long toLong(byte[] token) {
+
+		long value = 0;
+		for (byte b : token) {
+			value = (value << 8) | (b & 0xFF);
+		}
+
+		return value;
+
+	}
+
+}
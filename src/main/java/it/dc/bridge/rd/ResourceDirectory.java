@@ -197,7 +197,7 @@ public class ResourceDirectory extends CoapServer implements Runnable {
 		}
 		
 		// inform the Object Manager about the new resource
-		AJObjectManagerApp.getInstance().addResource(resource.getURI(), type, interfaceDes, node.getEndpointName());
+		AJObjectManagerApp.getInstance().addResource(resource.getURI(), type, interfaceDes, node.getEndpointName(), node.getURI());
 
 	}
 
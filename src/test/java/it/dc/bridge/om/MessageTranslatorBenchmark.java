@@ -0,0 +1,129 @@
+package it.dc.bridge.om;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import it.dc.bridge.om.CoAP.RequestCode;
+
+/**
+ * The <tt>MessageTranslatorBenchmark</tt> measures the allocation rate of the
+ * {@link MessageTranslator}, which runs twice on every request and once on
+ * every notification.
+ * <p>
+ * The messages without options are the common case; the others carry etags,
+ * accept, content format and query attributes. The benchmark does not need
+ * the AllJoyn native library. Run {@link #main(String[])} from the test
+ * classpath: the <tt>gc.alloc.rate.norm</tt> line of the GC profiler is the
+ * number of bytes allocated by each translation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageTranslatorBenchmark {
+
+	/* a GET request without options nor attributes */
+	private RequestMessage plainRequest;
+
+	/* a conditional GET request with query attributes */
+	private RequestMessage conditionalRequest;
+
+	/* a response with a payload and no options */
+	private Response plainResponse;
+
+	/* a response with content format, etag and max-age */
+	private Response taggedResponse;
+
+	@Setup
+	public void setup() {
+
+		byte[] payload = "22.5".getBytes();
+
+		plainRequest = new RequestMessage();
+
+		Options options = new Options();
+		options.setAccept(MediaTypeRegistry.TEXT_PLAIN);
+		options.setEtag(Arrays.asList(new byte[] { 1, 2, 3, 4 }, new byte[] { (byte) 0xCA, (byte) 0xFE }));
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+		attributes.put("unit", "celsius");
+		attributes.put("precision", "1");
+		conditionalRequest = new RequestMessage(options, attributes, new byte[0]);
+
+		plainResponse = new Response(ResponseCode.CONTENT);
+		plainResponse.setPayload(payload);
+
+		taggedResponse = new Response(ResponseCode.CONTENT);
+		taggedResponse.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+		taggedResponse.getOptions().addETag(new byte[] { 1, 2, 3, 4 });
+		taggedResponse.getOptions().setMaxAge(60);
+		taggedResponse.setPayload(payload);
+
+	}
+
+	@Benchmark
+	public Request plainRequest() {
+
+		return MessageTranslator.toRequest(RequestCode.GET, plainRequest);
+
+	}
+
+	@Benchmark
+	public Request conditionalRequest() {
+
+		return MessageTranslator.toRequest(RequestCode.GET, conditionalRequest);
+
+	}
+
+	@Benchmark
+	public ResponseMessage plainResponse() {
+
+		return MessageTranslator.toResponseMessage(plainResponse);
+
+	}
+
+	@Benchmark
+	public ResponseMessage taggedResponse() {
+
+		return MessageTranslator.toResponseMessage(taggedResponse);
+
+	}
+
+	/**
+	 * Runs the benchmark with the GC profiler.
+	 *
+	 * @param args not used
+	 * @throws RunnerException if the benchmark fails
+	 */
+	public static void main(String[] args) throws RunnerException {
+
+		new Runner(new OptionsBuilder()
+				.include(MessageTranslatorBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+
+	}
+
+}
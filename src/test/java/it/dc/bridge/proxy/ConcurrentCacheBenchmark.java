@@ -0,0 +1,141 @@
+package it.dc.bridge.proxy;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The <tt>ConcurrentCacheBenchmark</tt> measures the throughput of the
+ * {@link ConcurrentCache} under contention, from 1 to 32 threads.
+ * <p>
+ * The threads read the same keys, of several groups as the URIs of several
+ * nodes, with a write every 8 operations in the mixed benchmark. A map
+ * behind a single monitor, as the cache was before, is the baseline of the
+ * reads. Run {@link #main(String[])} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentCacheBenchmark {
+
+	/* the number of keys, a power of two */
+	private static final int KEYS = 1 << 12;
+
+	/* the number of groups of the keys */
+	private static final int GROUPS = 8;
+
+	/* the weight of each value */
+	private static final int WEIGHT = 256;
+
+	/* the thread counts of the benchmark */
+	private static final int[] THREADS = { 1, 2, 4, 8, 16, 32 };
+
+	private final String[] keys = new String[KEYS];
+
+	private final String[] groups = new String[KEYS];
+
+	/* all the keys fit, so the benchmark measures the contention, not the evictions */
+	private final ConcurrentCache<String, Integer> cache = new ConcurrentCache<String, Integer>(
+			2L * KEYS * WEIGHT, 0, WEIGHT, 1, TimeUnit.HOURS, null);
+
+	private final Map<String, Integer> locked = Collections.synchronizedMap(new HashMap<String, Integer>());
+
+	@Setup
+	public void setup() {
+
+		for (int i = 0; i < KEYS; i++) {
+			groups[i] = "coap://node" + (i % GROUPS);
+			keys[i] = groups[i] + "/sensor" + i;
+			cache.put(keys[i], i, groups[i], WEIGHT);
+			locked.put(keys[i], i);
+		}
+
+	}
+
+	/**
+	 * The sequence of keys of a thread.
+	 */
+	@State(Scope.Thread)
+	public static class Sequence {
+
+		/* never zero, the fixed point of xorshift */
+		private int next = (int) System.nanoTime() | 1;
+
+		/*
+		 * Returns the next key index (xorshift).
+		 */
+		int next() {
+
+			next ^= next << 13;
+			next ^= next >>> 17;
+			next ^= next << 5;
+
+			return next & (KEYS - 1);
+
+		}
+
+	}
+
+	@Benchmark
+	public Integer read(Sequence sequence) {
+
+		return cache.get(keys[sequence.next()]);
+
+	}
+
+	@Benchmark
+	public Integer readWrite(Sequence sequence) {
+
+		int index = sequence.next();
+		if ((index & 7) == 0) {
+			cache.put(keys[index], index, groups[index], WEIGHT);
+			return index;
+		}
+
+		return cache.get(keys[index]);
+
+	}
+
+	@Benchmark
+	public Integer lockedRead(Sequence sequence) {
+
+		return locked.get(keys[sequence.next()]);
+
+	}
+
+	/**
+	 * Runs the benchmark with 1 to 32 threads.
+	 *
+	 * @param args not used
+	 * @throws RunnerException if the benchmark fails
+	 */
+	public static void main(String[] args) throws RunnerException {
+
+		for (int threads : THREADS) {
+			new Runner(new OptionsBuilder()
+					.include(ConcurrentCacheBenchmark.class.getSimpleName())
+					.threads(threads)
+					.build()).run();
+		}
+
+	}
+
+}
@@ -0,0 +1,79 @@
+package it.dc.bridge.proxy;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The <tt>TokenProviderBenchmark</tt> compares the {@link TokenProvider}
+ * with the previous token generation, a <tt>new Random().nextBytes</tt>
+ * for each request.
+ * <p>
+ * A token is acquired and released, as for a request and its response, and
+ * the provider is shared by the threads, as it is shared by the requests to
+ * the CoAP Servers. Run {@link #main(String[])} from the test classpath: the
+ * benchmark runs with one thread and with a thread per processor, since each
+ * <tt>new Random()</tt> updates a shared seed, and with the GC profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenProviderBenchmark {
+
+	private final TokenProvider tokens = new TokenProvider();
+
+	@Benchmark
+	public byte[] provider() {
+
+		byte[] token = tokens.acquire();
+		tokens.release(token);
+
+		return token;
+
+	}
+
+	@Benchmark
+	public byte[] random() {
+
+		byte[] token = new byte[TokenProvider.TOKEN_LENGTH];
+		new Random().nextBytes(token);
+
+		return token;
+
+	}
+
+	/**
+	 * Runs the benchmark with one thread and with a thread per processor.
+	 *
+	 * @param args not used
+	 * @throws RunnerException if the benchmark fails
+	 */
+	public static void main(String[] args) throws RunnerException {
+
+		for (int threads : new int[] { 1, Runtime.getRuntime().availableProcessors() }) {
+			new Runner(new OptionsBuilder()
+					.include(TokenProviderBenchmark.class.getSimpleName())
+					.threads(threads)
+					.addProfiler(GCProfiler.class)
+					.build()).run();
+		}
+
+	}
+
+}